@@ -0,0 +1,61 @@
+package com.github.pavlos.collections.persistent;
+import java.io.Serializable;
+
+/**
+ *
+ * One change made to a map, as recorded in a ChangeLog
+ *
+ * @author Paul Hieromnimon
+ */
+public class ChangeEvent<K extends Serializable, V extends Serializable>
+        implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Type {
+        PUT,
+        REMOVE,
+        // every entry was removed, key and value are null
+        CLEAR
+    }
+
+    private final long sequence;
+    private final Type type;
+    private final K key;
+    private final V value;
+
+    public ChangeEvent(long sequence, Type type, K key, V value){
+        this.sequence = sequence;
+        this.type = type;
+        this.key = key;
+        this.value = value;
+    }
+
+    /**
+     *
+     * @return position of this change in the log, one higher than the
+     * change before it unless changes were lost in between
+     */
+    public long getSequence(){
+        return sequence;
+    }
+
+    public Type getType(){
+        return type;
+    }
+
+    public K getKey(){
+        return key;
+    }
+
+    /**
+     *
+     * @return the value that was put, null for REMOVE and CLEAR
+     */
+    public V getValue(){
+        return value;
+    }
+
+    public String toString(){
+        return sequence + " " + type + " " + key + "=" + value;
+    }
+}
@@ -0,0 +1,447 @@
+package com.github.pavlos.collections.persistent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ *
+ * A persistent, append-only log of ChangeEvents, numbered from 1 upwards.
+ *
+ * The log is split into segment files, each named after the sequence number
+ * of its first event, and each event is stored as its length followed by
+ * its serialized form.  Once a segment holds segmentSize events a new one is
+ * started, and if there are then more than maxSegments the oldest is
+ * deleted.  A record that was only partly written when the process died is
+ * cut off the end of the log when it is opened again.
+ *
+ * While the log is open it keeps a marker file in its directory, so that
+ * wasClosedCleanly() can tell whether the process using it last time died
+ * part way through a change.  Nothing is deleted in that case: it's up to
+ * the user of the log, ChangeLoggingHashMap, to reconcile its last events
+ * with the map.
+ *
+ * If an append fails part way, the partial record is cut off again; if even
+ * that fails, the log refuses any more appends until it is reopened.
+ * Consumers are told with a FellBehindException whenever there is a gap in
+ * the events they are reading, whether from retention or from skipSequence().
+ *
+ * @author Paul Hieromnimon
+ */
+public class ChangeLog<K extends Serializable, V extends Serializable> {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 10000;
+
+    private static final String SUFFIX = ".log";
+    // present while the log is open
+    private static final String OPEN = "open";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final boolean sync;
+    private final File marker;
+    // true if the marker was there when the log was opened
+    private final boolean uncleanlyClosed;
+
+    // first sequence number of every segment on disk, oldest first
+    private final TreeSet<Long> segments = new TreeSet<Long>();
+    private FileOutputStream out;
+    private long nextSequence;
+    // events in the segment being written
+    private int segmentCount;
+    // set when a failed append left a partial record that couldn't be removed
+    private boolean broken = false;
+
+    /**
+     * Opens a log that keeps every segment and doesn't force writes to disk
+     * @param directory where the segment files live
+     * @throws IOException
+     */
+    public ChangeLog(String directory) throws IOException{
+        this(directory, DEFAULT_SEGMENT_SIZE, 0, false);
+    }
+
+    /**
+     *
+     * @param directory where the segment files live
+     * @param segmentSize number of events per segment file
+     * @param maxSegments number of segment files to keep, zero to keep them all
+     * @param sync true to force every event to disk before append returns
+     * @throws IOException
+     */
+    public ChangeLog(String directory, int segmentSize, int maxSegments,
+            boolean sync) throws IOException{
+        if (segmentSize < 1){
+            throw new IllegalArgumentException("segmentSize must be at least 1");
+        }
+        this.directory = new File(directory);
+        this.directory.mkdirs();
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.sync = sync;
+        this.marker = new File(this.directory, OPEN);
+
+        for (String name: this.directory.list()){
+            if (name.endsWith(SUFFIX)){
+                segments.add(Long.valueOf(
+                        name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+
+        if (segments.isEmpty()){
+            nextSequence = 1;
+            openSegment(nextSequence);
+        } else {
+            recover(segments.last());
+            out = new FileOutputStream(segmentFile(segments.last()), true);
+        }
+
+        uncleanlyClosed = marker.exists();
+        // must be on disk before any change is made, or a crash could go
+        // unnoticed
+        if (!uncleanlyClosed){
+            marker.createNewFile();
+            FileSystemHashMap.syncDirectory(this.directory);
+        }
+    }
+
+    /**
+     * Adds an event to the end of the log
+     * @param type
+     * @param key
+     * @param value
+     * @return the event, with its sequence number
+     * @throws IOException
+     */
+    public synchronized ChangeEvent<K,V> append(ChangeEvent.Type type, K key,
+            V value) throws IOException{
+        if (out == null){
+            throw new IOException("change log is closed");
+        }
+        if (broken){
+            throw new IOException("change log is damaged, reopen it");
+        }
+        if (segmentCount >= segmentSize){
+            roll();
+        }
+        ChangeEvent<K,V> event = new ChangeEvent<K,V>(nextSequence, type, key, value);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream(bytes);
+        os.writeObject(event);
+        os.close();
+        ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.size() + 4);
+        DataOutputStream ds = new DataOutputStream(record);
+        ds.writeInt(bytes.size());
+        bytes.writeTo(ds);
+        ds.close();
+
+        // one write, so a reader sees the whole record or a short file
+        long end = out.getChannel().position();
+        try{
+            out.write(record.toByteArray());
+            if (sync){
+                out.getFD().sync();
+            }
+        } catch (IOException e){
+            // the event mustn't count as logged, and whatever part of it
+            // got written would be read as garbage by cursors and would
+            // hide every later record from recover()
+            try{
+                out.getChannel().truncate(end);
+            } catch (IOException e2){
+                broken = true;
+            }
+            throw e;
+        }
+        nextSequence++;
+        segmentCount++;
+        return event;
+    }
+
+    /**
+     * Leaves out the next sequence number, so that every consumer reading
+     * past it gets a FellBehindException.  For when a change may have been
+     * made that couldn't be logged.
+     */
+    synchronized void skipSequence(){
+        nextSequence++;
+    }
+
+    /**
+     *
+     * @return false if the log wasn't closed the last time it was used, in
+     * which case its last few events may be of changes that were never
+     * made, and changes made after them may be missing
+     */
+    public boolean wasClosedCleanly(){
+        return !uncleanlyClosed;
+    }
+
+    /**
+     *
+     * @return sequence number of the newest event, 0 if there has never been one
+     */
+    public synchronized long getLastSequence(){
+        return nextSequence - 1;
+    }
+
+    /**
+     *
+     * @return sequence number of the oldest event still kept.  A consumer
+     * that has read up to anything before getFirstSequence() - 1 has missed
+     * events and needs to start over from the map itself.
+     */
+    public synchronized long getFirstSequence(){
+        return segments.first();
+    }
+
+    /**
+     * Opens a cursor over the events after sequence
+     * @param sequence last sequence number the consumer has seen, 0 to
+     * start at the oldest event still kept
+     * @return
+     * @throws FellBehindException if the events right after sequence are
+     * no longer kept
+     */
+    public synchronized Cursor changesSince(long sequence) throws FellBehindException{
+        if (sequence + 1 < segments.first() && sequence > 0){
+            throw fellBehind(sequence);
+        }
+        return new Cursor(Math.max(sequence, segments.first() - 1));
+    }
+
+    /**
+     * Closes the log, marking it as closed cleanly
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException{
+        if (out != null){
+            out.getFD().sync();
+            out.close();
+            out = null;
+            // a damaged log has to be looked at again when it's reopened
+            if (!broken){
+                marker.delete();
+                FileSystemHashMap.syncDirectory(directory);
+            }
+        }
+    }
+
+    /**
+     * Reads events from the log in order, in batches.  The log can be
+     * written to while it is being read, and the cursor picks up the new
+     * events on the next call to next().  Cursors aren't thread safe.
+     */
+    public class Cursor {
+        // last sequence number handed out
+        private long sequence;
+        private RandomAccessFile in;
+        // first sequence number of the segment in is reading
+        private long segment;
+
+        private Cursor(long sequence){
+            this.sequence = sequence;
+        }
+
+        /**
+         *
+         * @return sequence number of the last event returned by next(), which
+         * is what a consumer should save to resume from
+         */
+        public long getSequence(){
+            return sequence;
+        }
+
+        /**
+         * Reads the next batch of events
+         * @param max most events to return
+         * @return the events, empty if the cursor has caught up with the log
+         * @throws FellBehindException if the events after getSequence() have
+         * been deleted to keep the log within maxSegments, or some of them
+         * were skipped
+         * @throws IOException
+         */
+        @SuppressWarnings("unchecked")
+        public List<ChangeEvent<K,V>> next(int max) throws IOException{
+            List<ChangeEvent<K,V>> batch = new ArrayList<ChangeEvent<K,V>>();
+            try{
+                while (batch.size() < max){
+                    if (in == null){
+                        Long start = segmentFor(sequence + 1);
+                        if (start == null){
+                            throw fellBehind(sequence);
+                        }
+                        open(start);
+                    }
+
+                    long position = in.getFilePointer();
+                    ChangeEvent<K,V> event = (ChangeEvent<K,V>) readRecord(in);
+                    if (event == null){
+                        Long after = segmentAfter(segment);
+                        if (after == null){
+                            // caught up
+                            break;
+                        }
+                        // this segment was finished before the next one was
+                        // started, so one more look is enough to be sure it's done
+                        event = (ChangeEvent<K,V>) readRecord(in);
+                        if (event == null){
+                            in.close();
+                            open(after);
+                            continue;
+                        }
+                    }
+                    if (event.getSequence() > sequence + 1){
+                        // deleted by retention while the segment before was
+                        // being read, or skipped.  read it again next time
+                        in.seek(position);
+                        throw fellBehind(sequence);
+                    }
+                    if (event.getSequence() > sequence){
+                        batch.add(event);
+                        sequence = event.getSequence();
+                    }
+                }
+            } catch (FellBehindException e){
+                // hand out what came before the gap first, the next call
+                // finds the gap again
+                if (batch.isEmpty()){
+                    throw e;
+                }
+            }
+            return batch;
+        }
+
+        public void close() throws IOException{
+            if (in != null){
+                in.close();
+                in = null;
+            }
+        }
+
+        private void open(long start) throws IOException{
+            try{
+                in = new RandomAccessFile(segmentFile(start), "r");
+            } catch (FileNotFoundException e){
+                in = null;
+                throw fellBehind(sequence);
+            }
+            segment = start;
+        }
+    }
+
+
+    /**** Private Helper Methods ****/
+
+    private FellBehindException fellBehind(long sequence){
+        return new FellBehindException("some changes after " + sequence
+                + " are missing, the oldest kept is " + getFirstSequence());
+    }
+
+    private synchronized Long segmentFor(long sequence){
+        return segments.floor(sequence);
+    }
+
+    private synchronized Long segmentAfter(long start){
+        return segments.higher(start);
+    }
+
+    private File segmentFile(long start){
+        return new File(directory, String.format("%019d", start) + SUFFIX);
+    }
+
+    private void openSegment(long start) throws IOException{
+        out = new FileOutputStream(segmentFile(start), true);
+        segments.add(start);
+        segmentCount = 0;
+    }
+
+    /**
+     * Starts a new segment, then deletes the oldest ones if there are too many
+     * @throws IOException
+     */
+    private void roll() throws IOException{
+        out.close();
+        openSegment(nextSequence);
+        while (maxSegments > 0 && segments.size() > maxSegments){
+            segmentFile(segments.pollFirst()).delete();
+        }
+    }
+
+    /**
+     * Finds where the last segment ends and cuts off a record that was only
+     * partly written
+     * @param start
+     * @throws IOException
+     */
+    private void recover(long start) throws IOException{
+        RandomAccessFile raf = new RandomAccessFile(segmentFile(start), "rw");
+        try{
+            long last = start - 1;
+            int count = 0;
+            long end = 0;
+            while (true){
+                ChangeEvent<?,?> event;
+                try{
+                    event = readRecord(raf);
+                } catch (IOException e){
+                    event = null;
+                }
+                if (event == null){
+                    break;
+                }
+                last = event.getSequence();
+                count++;
+                end = raf.getFilePointer();
+            }
+            raf.setLength(end);
+            nextSequence = last + 1;
+            segmentCount = count;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the record at the file's current position
+     * @param in
+     * @return the event, or null if there isn't a whole record there yet, in
+     * which case the position is left where it was
+     * @throws IOException
+     */
+    private static ChangeEvent<?,?> readRecord(RandomAccessFile in) throws IOException{
+        long position = in.getFilePointer();
+        long length = in.length();
+        if (position + 4 > length){
+            return null;
+        }
+        int size = in.readInt();
+        if (size < 0 || position + 4 + size > length){
+            in.seek(position);
+            return null;
+        }
+        byte[] bytes = new byte[size];
+        in.readFully(bytes);
+
+        ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try{
+            return (ChangeEvent<?,?>) is.readObject();
+        } catch (ClassNotFoundException e){
+            throw new IOException("could not read change log record", e);
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.github.pavlos.collections.persistent;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ *
+ * Wraps an IOMap and records every put, remove and clear in a ChangeLog, so
+ * that other processes can follow the changes with changesSince() instead
+ * of comparing copies of the whole map.
+ *
+ * A change is logged before it is made to the wrapped map, so a change the
+ * log couldn't record is never made at all.  The log may then hold a change
+ * that wasn't made, if making it fails or the process dies in between, so
+ * the map's state for that key is logged again straight after a failure,
+ * and for the keys of the last RECOVERY_WINDOW events when the log wasn't
+ * closed cleanly.  Consumers that apply every event in order therefore end
+ * up agreeing with the map, without having to start over.  If even that
+ * can't be logged, a sequence number is skipped, which makes consumers
+ * start over from the map.
+ *
+ * With a change log that doesn't sync, a crash of the whole machine rather
+ * than the process can still lose events from the log that the map kept.
+ *
+ * Like FileSystemHashMap this class doesn't lock anything itself: wrap it in
+ * a ConcurrentHashMap so that changes to the same key are logged in the
+ * order they were made.
+ *
+ * @author Paul Hieromnimon
+ */
+public class ChangeLoggingHashMap<K extends Serializable, V extends Serializable>
+        implements IOMap<K,V> {
+
+    // more changes than can be in progress at once, since each one holds a
+    // thread
+    static final int RECOVERY_WINDOW = 1000;
+
+    private final IOMap<K,V> map;
+    private final ChangeLog<K,V> log;
+
+    /**
+     *
+     * @param map map to record changes to
+     * @param logDirectory where to keep the change log
+     * @throws IOException
+     */
+    public ChangeLoggingHashMap(IOMap<K,V> map, String logDirectory)
+            throws IOException {
+        this(map, new ChangeLog<K,V>(logDirectory));
+    }
+
+    /**
+     *
+     * @param map map to record changes to
+     * @param log change log, which should already hold every change made
+     * to the map, or none of them
+     * @throws IOException
+     */
+    public ChangeLoggingHashMap(IOMap<K,V> map, ChangeLog<K,V> log)
+            throws IOException {
+        this.map = map;
+        this.log = log;
+        if (!log.wasClosedCleanly()){
+            recover();
+        }
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public boolean containsKey(Object key) {
+        return map.containsKey(key);
+    }
+
+    public V get(Object key) throws IOException {
+        return map.get(key);
+    }
+
+    public V put(K key, V value) throws IOException {
+        log.append(ChangeEvent.Type.PUT, key, value);
+        boolean done = false;
+        try{
+            V previous = map.put(key, value);
+            done = true;
+            return previous;
+        } finally {
+            if (!done){
+                logCurrentState(key);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) throws IOException {
+        // removing a key that isn't there isn't a change
+        if (!map.containsKey(key)){
+            return null;
+        }
+        // the key is in the map, so it must be a K
+        log.append(ChangeEvent.Type.REMOVE, (K) key, null);
+        boolean done = false;
+        try{
+            V previous = map.remove(key);
+            done = true;
+            return previous;
+        } finally {
+            if (!done){
+                logCurrentState((K) key);
+            }
+        }
+    }
+
+    public void putAll(Map<? extends K, ? extends V> m) throws IOException {
+        // every entry gets its own event
+        for (Entry<? extends K, ? extends V> e: m.entrySet()){
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    public void clear() {
+        try{
+            log.append(ChangeEvent.Type.CLEAR, null, null);
+        } catch (IOException e){
+            throw new RuntimeIOException(e);
+        }
+        boolean done = false;
+        try{
+            map.clear();
+            done = true;
+        } finally {
+            if (!done){
+                logRemainingEntries(null);
+            }
+        }
+    }
+
+    public boolean containsValue(Object value) throws IOException {
+        return map.containsValue(value);
+    }
+
+    public Set<K> keysForValue(V value) throws IOException {
+        return map.keysForValue(value);
+    }
+
+    public boolean isValueIndexed() {
+        return map.isValueIndexed();
+    }
+
+    public Collection<V> values() throws IOException {
+        return map.values();
+    }
+
+    public Set<K> keySet() throws IOException {
+        return map.keySet();
+    }
+
+    public Set<Entry<K, V>> entrySet() throws IOException {
+        return map.entrySet();
+    }
+
+    /**
+     * Opens a cursor over the changes made after sequence.  A consumer
+     * should save the cursor's getSequence() after handling each batch,
+     * and pass it back in here after a restart.
+     * @param sequence last sequence number the consumer has seen, 0 to
+     * start at the oldest change still kept
+     * @return
+     * @throws FellBehindException if the consumer has missed changes and
+     * has to start over from the map
+     */
+    public ChangeLog<K,V>.Cursor changesSince(long sequence)
+            throws FellBehindException {
+        return log.changesSince(sequence);
+    }
+
+    public ChangeLog<K,V> getChangeLog(){
+        return log;
+    }
+
+    /**
+     * Closes the change log, the map can't be changed afterwards.  If the
+     * process ends without calling this, the last changes are checked
+     * against the map when it's next opened.
+     * @throws IOException
+     */
+    public void close() throws IOException{
+        log.close();
+    }
+
+
+    /**** Private Helper Methods ****/
+
+    /**
+     * Logs whatever the map now holds for key, after a change to it that
+     * was logged may have failed
+     * @param key
+     */
+    private void logCurrentState(K key){
+        try{
+            V current = map.get(key);
+            if (current != null || map.containsKey(key)){
+                log.append(ChangeEvent.Type.PUT, key, current);
+            } else {
+                log.append(ChangeEvent.Type.REMOVE, key, null);
+            }
+        } catch (IOException e){
+            log.skipSequence();
+        } catch (RuntimeException e){
+            log.skipSequence();
+        }
+    }
+
+    /**
+     * Logs every entry still in the map that the log says isn't there,
+     * after a clear that was logged may not have finished
+     * @param logged keys whose state has already been logged since the
+     * clear, or null if there are none
+     */
+    private void logRemainingEntries(Set<K> logged){
+        try{
+            for (Entry<K,V> e: map.entrySet()){
+                if (logged == null || !logged.contains(e.getKey())){
+                    log.append(ChangeEvent.Type.PUT, e.getKey(), e.getValue());
+                }
+            }
+        } catch (IOException e){
+            log.skipSequence();
+        } catch (RuntimeException e){
+            log.skipSequence();
+        }
+    }
+
+    /**
+     * Brings the log back in line with the map after a crash.  Any change
+     * that was logged but not made is among the last few events, so the
+     * map's state is logged again for each key in them that it doesn't
+     * agree with.
+     * @throws IOException
+     */
+    private void recover() throws IOException {
+        long from = Math.max(log.getLastSequence() - RECOVERY_WINDOW,
+                log.getFirstSequence() - 1);
+        // the last event for each key, as of the last clear if there was one
+        Map<K,ChangeEvent<K,V>> latest = new HashMap<K,ChangeEvent<K,V>>();
+        boolean cleared = false;
+        ChangeLog<K,V>.Cursor cursor = log.changesSince(Math.max(from, 0));
+        try{
+            while (true){
+                List<ChangeEvent<K,V>> batch;
+                try{
+                    batch = cursor.next(RECOVERY_WINDOW);
+                } catch (FellBehindException e){
+                    // a skipped sequence number, which is no reason to stop
+                    long skipped = cursor.getSequence() + 1;
+                    cursor.close();
+                    cursor = log.changesSince(skipped);
+                    continue;
+                }
+                if (batch.isEmpty()){
+                    break;
+                }
+                for (ChangeEvent<K,V> e: batch){
+                    if (e.getType() == ChangeEvent.Type.CLEAR){
+                        latest.clear();
+                        cleared = true;
+                    } else {
+                        latest.put(e.getKey(), e);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int present = 0;
+        for (ChangeEvent<K,V> e: latest.values()){
+            K key = e.getKey();
+            boolean inMap = map.containsKey(key);
+            if (inMap){
+                present++;
+                V current = map.get(key);
+                if (e.getType() != ChangeEvent.Type.PUT
+                        || !valueEquals(current, e.getValue())){
+                    log.append(ChangeEvent.Type.PUT, key, current);
+                }
+            } else if (e.getType() == ChangeEvent.Type.PUT){
+                log.append(ChangeEvent.Type.REMOVE, key, null);
+            }
+        }
+        // a clear that didn't finish leaves entries the log says are gone
+        if (cleared && map.size() > present){
+            logRemainingEntries(latest.keySet());
+        }
+    }
+
+    private static boolean valueEquals(Object a, Object b){
+        return (a == null) ? b == null : a.equals(b);
+    }
+}
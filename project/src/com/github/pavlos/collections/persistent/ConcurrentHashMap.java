@@ -137,6 +137,12 @@ public class ConcurrentHashMap<K extends Serializable, V extends Serializable>
     }
 
     public boolean containsValue(Object value) throws IOException {
+        // an indexed map only reads the handful of entries the index points
+        // at, and each of those is replaced atomically, so there's no need to
+        // hold up every writer while it looks
+        if (map.isValueIndexed()){
+            return map.containsValue(value);
+        }
         try{
             acquireAllReadLocks();
             return map.containsValue(value);
@@ -145,6 +151,23 @@ public class ConcurrentHashMap<K extends Serializable, V extends Serializable>
         }
     }
 
+    public Set<K> keysForValue(V value) throws IOException {
+        // see containsValue
+        if (map.isValueIndexed()){
+            return map.keysForValue(value);
+        }
+        try{
+            acquireAllReadLocks();
+            return map.keysForValue(value);
+        } finally {
+            releaseAllReadLocks();
+        }
+    }
+
+    public boolean isValueIndexed() {
+        return map.isValueIndexed();
+    }
+
     public Set<Entry<K, V>> entrySet() throws IOException {
         try{
             acquireAllReadLocks();
@@ -0,0 +1,790 @@
+package com.github.pavlos.collections.persistent;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ *
+ * Wraps an IOMap and keeps it under a maximum number of entries and/or a
+ * maximum number of bytes, which turns a FileSystemHashMap into a disk cache.
+ *
+ * When the map is full, entries are evicted from the wrapped map using the
+ * CLOCK algorithm, an approximation of least-recently-used.  The metadata it
+ * needs (a reference bit, the size and the expiry time of every entry) is
+ * kept in memory in parallel arrays, so nothing is read from disk to decide
+ * what to evict.  Entries may also be given a time to live, after which a
+ * background sweeper removes them.
+ *
+ * The size and expiry time of every entry are also written to a small
+ * FileSystemHashMap of their own, the metadata store, so that a reopened
+ * cache knows them by reading the metadata store, only checking that each
+ * entry is still there.  Entries the metadata store doesn't know about,
+ * because they were put before it existed, are read back to be weighed.
+ * This means every put writes a second, small file, which maxBytes doesn't
+ * count.
+ *
+ * The in-memory bookkeeping is guarded by this map's monitor, which is never
+ * held during IO.  IO is done under per-key read/write locks, as in
+ * ConcurrentHashMap, so reads of different keys go on in parallel and there
+ * is no need to wrap this map in a ConcurrentHashMap.  The wrapped map must
+ * not be modified except through this map, otherwise the bookkeeping is wrong.
+ *
+ * @author Paul Hieromnimon
+ */
+public class EvictingHashMap<K extends Serializable, V extends Serializable>
+        implements IOMap<K,V> {
+
+    /**
+     * Why an entry was removed by the map rather than by the caller
+     */
+    public enum RemovalCause {
+        // the map was over its entry or byte limit
+        SIZE,
+        // the entry's time to live ran out
+        EXPIRED
+    }
+
+    /**
+     * Notified whenever the map removes an entry on its own.  Listeners are
+     * called from the thread whose operation caused the removal, or from the
+     * sweeper, after the entry is gone and without any locks held.  An
+     * exception thrown by a listener is handed to the thread's uncaught
+     * exception handler, and doesn't affect the map or the other listeners.
+     */
+    public interface EvictionListener<K,V> {
+        void onEviction(K key, V value, RemovalCause cause);
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+    // no expiry
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private final IOMap<K,V> map;
+    // size and expiry of every entry in map
+    private final IOMap<K,EntryInfo> metadata;
+    // limits, zero or less means no limit
+    private final long maxEntries;
+    private final long maxBytes;
+    // time to live given to entries put without one, in milliseconds
+    private final long defaultTtl;
+    // a key's lock is held while its entry is read or written
+    private final ReadWriteLock[] locks;
+
+    // CLOCK state.  Every entry occupies a slot, and the hand sweeps over the
+    // slots looking for one that hasn't been referenced since its last pass
+    private final Map<Object,Integer> slots = new HashMap<Object,Integer>();
+    private Object[] keys = new Object[INITIAL_CAPACITY];
+    private boolean[] referenced = new boolean[INITIAL_CAPACITY];
+    private int[] weights = new int[INITIAL_CAPACITY];
+    private long[] expiries = new long[INITIAL_CAPACITY];
+    // slots that have been used at least once
+    private int highWater = 0;
+    // slots below highWater that have been freed, used as a stack
+    private int[] free = new int[INITIAL_CAPACITY];
+    private int freeCount = 0;
+    private int hand = 0;
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+
+    private final List<EvictionListener<K,V>> listeners =
+            new CopyOnWriteArrayList<EvictionListener<K,V>>();
+    // null if there's no background sweeping
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     *
+     * @param map map to bound
+     * @param metadataStore location of the store that keeps the size and
+     * expiry time of every entry
+     * @param maxEntries maximum number of entries, zero for no limit
+     * @param maxBytes maximum serialized size of all entries, zero for no limit
+     * @throws IOException
+     */
+    public EvictingHashMap(IOMap<K,V> map, String metadataStore,
+            long maxEntries, long maxBytes) throws IOException {
+        this(map, metadataStore, maxEntries, maxBytes, 0, 0,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     *
+     * @param map map to bound
+     * @param metadataStore location of the store that keeps the size and
+     * expiry time of every entry
+     * @param maxEntries maximum number of entries, zero for no limit
+     * @param maxBytes maximum serialized size of all entries, zero for no limit
+     * @param defaultTtl time to live of entries put without one, zero for
+     * entries that never expire
+     * @param sweepInterval how often the background sweeper looks for expired
+     * entries, zero for no sweeper (expired entries are then only removed
+     * when they are read or by calling expireEntries)
+     * @param unit unit of defaultTtl and sweepInterval
+     * @throws IOException
+     */
+    public EvictingHashMap(IOMap<K,V> map, String metadataStore,
+            long maxEntries, long maxBytes, long defaultTtl,
+            long sweepInterval, TimeUnit unit) throws IOException {
+        this.map = map;
+        this.metadata = new FileSystemHashMap<K,EntryInfo>(metadataStore);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.defaultTtl = unit.toMillis(defaultTtl);
+
+        int concurrency = ConcurrentHashMap.determineConcurrencyLevel();
+        locks = new ReentrantReadWriteLock[concurrency];
+        for (int i = 0; i < concurrency; i++){
+            locks[i] = new ReentrantReadWriteLock();
+        }
+
+        // pick up whatever the map already holds from the metadata, which
+        // is much smaller than the entries themselves
+        List<K> stale = new ArrayList<K>();
+        for (Entry<K,EntryInfo> e: metadata.entrySet()){
+            if (map.containsKey(e.getKey())){
+                track(e.getKey(), e.getValue().weight, e.getValue().expiry);
+            } else {
+                // metadata is written before its entry and removed after
+                // it, so a crash can leave some behind
+                stale.add(e.getKey());
+            }
+        }
+        for (K key: stale){
+            metadata.remove(key);
+        }
+        if (map.size() > slots.size()){
+            for (K key: map.keySet()){
+                if (!slots.containsKey(key)){
+                    // put before there was a metadata store, so it never expires
+                    EntryInfo info = new EntryInfo(weigh(key, map.get(key)), NEVER);
+                    metadata.put(key, info);
+                    track(key, info.weight, info.expiry);
+                }
+            }
+        }
+        evictIfNeeded();
+
+        if (sweepInterval > 0){
+            sweeper = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory(){
+                        public Thread newThread(Runnable r){
+                            Thread t = new Thread(r, "EvictingHashMap sweeper");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            sweeper.scheduleWithFixedDelay(new Runnable(){
+                public void run(){
+                    try{
+                        expireEntries();
+                    } catch (IOException e){
+                        // nothing to report it to, the entries that couldn't
+                        // be removed are still tracked and will be retried
+                    } catch (RuntimeException e){
+                        // letting it escape would cancel every later sweep
+                        report(e);
+                    }
+                }
+            }, sweepInterval, sweepInterval, unit);
+        } else {
+            sweeper = null;
+        }
+    }
+
+    public synchronized int size() {
+        return slots.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return slots.isEmpty();
+    }
+
+    public synchronized boolean containsKey(Object key) {
+        Integer slot = slots.get(key);
+        return slot != null && !isExpired(slot);
+    }
+
+    /**
+     *
+     * @param key
+     * @return Returns the value to which the specified key is mapped,
+     * or {@code null} if this map contains no mapping for the key or it has
+     * expired
+     * @throws IOException
+     */
+    public V get(Object key) throws IOException {
+        boolean expired = false;
+        ReadWriteLock l = getLock(key);
+        l.readLock().lock();
+        try{
+            synchronized (this){
+                Integer slot = slots.get(key);
+                if (slot == null){
+                    misses++;
+                    return null;
+                }
+                if (isExpired(slot)){
+                    misses++;
+                    expired = true;
+                }
+            }
+            if (!expired){
+                V value = map.get(key);
+                synchronized (this){
+                    Integer slot = slots.get(key);
+                    if (value == null){
+                        misses++;
+                    } else {
+                        hits++;
+                        if (slot != null){
+                            referenced[slot] = true;
+                        }
+                    }
+                }
+                return value;
+            }
+        } finally {
+            l.readLock().unlock();
+        }
+        // a read lock can't be upgraded, so the expired entry is removed
+        // after letting go of it
+        expireEntry(key);
+        return null;
+    }
+
+    /**
+     * adds or replaces a key value pair, giving it the default time to live
+     * @param key
+     * @param value
+     * @return previous value associated with this key, or null if none
+     * @throws IOException
+     */
+    public V put(K key, V value) throws IOException {
+        return doPut(key, value, defaultTtl);
+    }
+
+    /**
+     * adds or replaces a key value pair that expires after ttl
+     * @param key
+     * @param value
+     * @param ttl time to live, zero for an entry that never expires
+     * @param unit
+     * @return previous value associated with this key, or null if none
+     * @throws IOException
+     */
+    public V put(K key, V value, long ttl, TimeUnit unit) throws IOException {
+        return doPut(key, value, unit.toMillis(ttl));
+    }
+
+    public V remove(Object key) throws IOException {
+        ReadWriteLock l = getLock(key);
+        l.writeLock().lock();
+        try{
+            boolean expired;
+            synchronized (this){
+                Integer slot = slots.get(key);
+                if (slot == null){
+                    return null;
+                }
+                expired = isExpired(slot);
+            }
+            V previous = map.remove(key);
+            metadata.remove(key);
+            synchronized (this){
+                Integer slot = slots.get(key);
+                if (slot != null){
+                    untrack(slot);
+                }
+            }
+            return expired ? null : previous;
+        } finally {
+            l.writeLock().unlock();
+        }
+    }
+
+    public void putAll(Map<? extends K, ? extends V> m) throws IOException {
+        for (Entry<? extends K, ? extends V> e: m.entrySet()){
+            doPut(e.getKey(), e.getValue(), defaultTtl);
+        }
+    }
+
+    public void clear() {
+        // nobody holds more than one key lock at a time, so taking them all
+        // in order can't deadlock
+        for (ReadWriteLock l: locks){
+            l.writeLock().lock();
+        }
+        try{
+            map.clear();
+            metadata.clear();
+            synchronized (this){
+                slots.clear();
+                keys = new Object[INITIAL_CAPACITY];
+                referenced = new boolean[INITIAL_CAPACITY];
+                weights = new int[INITIAL_CAPACITY];
+                expiries = new long[INITIAL_CAPACITY];
+                free = new int[INITIAL_CAPACITY];
+                highWater = 0;
+                freeCount = 0;
+                hand = 0;
+                bytes = 0;
+            }
+        } finally {
+            for (ReadWriteLock l: locks){
+                l.writeLock().unlock();
+            }
+        }
+    }
+
+    public boolean containsValue(Object value) throws IOException {
+        expireEntries();
+        return map.containsValue(value);
+    }
+
+    public Set<K> keysForValue(V value) throws IOException {
+        expireEntries();
+        return map.keysForValue(value);
+    }
+
+    public boolean isValueIndexed() {
+        return map.isValueIndexed();
+    }
+
+    public Collection<V> values() throws IOException {
+        expireEntries();
+        return map.values();
+    }
+
+    public Set<K> keySet() throws IOException {
+        expireEntries();
+        return map.keySet();
+    }
+
+    public Set<Entry<K, V>> entrySet() throws IOException {
+        expireEntries();
+        return map.entrySet();
+    }
+
+    /**
+     * Removes every entry whose time to live has run out.  This is what the
+     * background sweeper runs.
+     * @throws IOException
+     */
+    public void expireEntries() throws IOException {
+        List<Victim> victims = new ArrayList<Victim>();
+        synchronized (this){
+            long now = System.currentTimeMillis();
+            for (int slot = 0; slot < highWater; slot++){
+                if (keys[slot] != null && expiries[slot] <= now){
+                    victims.add(untrack(slot));
+                }
+            }
+        }
+        removeVictims(victims, RemovalCause.EXPIRED);
+    }
+
+    public void addEvictionListener(EvictionListener<K,V> listener){
+        listeners.add(listener);
+    }
+
+    public void removeEvictionListener(EvictionListener<K,V> listener){
+        listeners.remove(listener);
+    }
+
+    /**
+     *
+     * @return a snapshot of this map's counters
+     */
+    public synchronized Stats getStats(){
+        return new Stats(hits, misses, evictions, expirations,
+                slots.size(), bytes);
+    }
+
+    /**
+     * Stops the background sweeper, if there is one.  The map can still be
+     * used afterwards, but expired entries are only removed when read.
+     */
+    public void shutdown(){
+        if (sweeper != null){
+            sweeper.shutdown();
+        }
+    }
+
+    /**
+     * Counters describing how well the cache is doing
+     */
+    public static class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long expirations;
+        private final long entries;
+        private final long bytes;
+
+        Stats(long hits, long misses, long evictions, long expirations,
+                long entries, long bytes){
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+
+        public long getHitCount(){
+            return hits;
+        }
+
+        public long getMissCount(){
+            return misses;
+        }
+
+        /**
+         *
+         * @return fraction of gets that found a value, or 1 if there
+         * haven't been any
+         */
+        public double getHitRate(){
+            long requests = hits + misses;
+            return (requests == 0) ? 1.0 : (double) hits / requests;
+        }
+
+        /**
+         *
+         * @return number of entries removed to stay under the limits
+         */
+        public long getEvictionCount(){
+            return evictions;
+        }
+
+        /**
+         *
+         * @return number of entries removed because they expired
+         */
+        public long getExpirationCount(){
+            return expirations;
+        }
+
+        public long getEntryCount(){
+            return entries;
+        }
+
+        /**
+         *
+         * @return serialized size of all the entries
+         */
+        public long getByteCount(){
+            return bytes;
+        }
+
+        public String toString(){
+            return "hits=" + hits + " misses=" + misses
+                    + " evictions=" + evictions + " expirations=" + expirations
+                    + " entries=" + entries + " bytes=" + bytes;
+        }
+    }
+
+
+    /**** Private Helper Methods ****/
+
+    private V doPut(K key, V value, long ttl) throws IOException {
+        int weight = weigh(key, value);
+        long expiry = (ttl > 0) ? System.currentTimeMillis() + ttl : NEVER;
+        V previous;
+        boolean expired;
+
+        ReadWriteLock l = getLock(key);
+        l.writeLock().lock();
+        try{
+            // the metadata goes first, so an entry is never on disk without
+            // its expiry time
+            metadata.put(key, new EntryInfo(weight, expiry));
+            previous = map.put(key, value);
+            synchronized (this){
+                Integer slot = slots.get(key);
+                expired = slot != null && isExpired(slot);
+                if (slot != null){
+                    untrack(slot);
+                }
+                track(key, weight, expiry);
+            }
+        } finally {
+            l.writeLock().unlock();
+        }
+        evictIfNeeded();
+
+        return expired ? null : previous;
+    }
+
+    private void expireEntry(Object key) throws IOException {
+        List<Victim> victims = new ArrayList<Victim>(1);
+        synchronized (this){
+            Integer slot = slots.get(key);
+            if (slot != null && isExpired(slot)){
+                victims.add(untrack(slot));
+            }
+        }
+        removeVictims(victims, RemovalCause.EXPIRED);
+    }
+
+    /**
+     * Runs the clock hand until the map is back under its limits, then
+     * removes the entries it picked.  Every referenced slot the hand passes
+     * gets a second chance, so this ends after at most two trips around the
+     * clock.
+     * @throws IOException
+     */
+    private void evictIfNeeded() throws IOException {
+        List<Victim> victims = new ArrayList<Victim>();
+        synchronized (this){
+            while (isOverLimit() && !slots.isEmpty()){
+                if (hand >= highWater){
+                    hand = 0;
+                }
+                int slot = hand++;
+                if (keys[slot] == null){
+                    continue;
+                }
+                if (referenced[slot]){
+                    referenced[slot] = false;
+                } else {
+                    victims.add(untrack(slot));
+                }
+            }
+        }
+        removeVictims(victims, RemovalCause.SIZE);
+    }
+
+    /**
+     * Removes entries that have already been untracked from the wrapped map
+     * and tells the listeners.  An entry that was put again in the meantime
+     * is left alone, and one that can't be removed is tracked again.
+     * @param victims
+     * @param cause
+     * @throws IOException the first failure, after trying every victim
+     */
+    private void removeVictims(List<Victim> victims, RemovalCause cause)
+            throws IOException {
+        IOException failure = null;
+        for (Victim victim: victims){
+            V value;
+            ReadWriteLock l = getLock(victim.key);
+            l.writeLock().lock();
+            try{
+                synchronized (this){
+                    if (slots.containsKey(victim.key)){
+                        continue;
+                    }
+                }
+                try{
+                    value = map.remove(victim.key);
+                } catch (IOException e){
+                    // still on disk, so it has to stay on the clock
+                    synchronized (this){
+                        track(victim.key, victim.weight, victim.expiry);
+                    }
+                    if (failure == null){
+                        failure = e;
+                    }
+                    continue;
+                }
+                try{
+                    metadata.remove(victim.key);
+                } catch (IOException e){
+                    // only leaves stale metadata behind, which is cleaned
+                    // up when the map is next opened
+                    if (failure == null){
+                        failure = e;
+                    }
+                }
+            } finally {
+                l.writeLock().unlock();
+            }
+
+            synchronized (this){
+                if (cause == RemovalCause.SIZE){
+                    evictions++;
+                } else {
+                    expirations++;
+                }
+            }
+            for (EvictionListener<K,V> listener: listeners){
+                // the entry is already gone, so a failing listener must not
+                // stop the remaining victims from going too, or fail the
+                // operation that caused the eviction
+                try{
+                    listener.onEviction(victim.key, value, cause);
+                } catch (RuntimeException e){
+                    report(e);
+                }
+            }
+        }
+        if (failure != null){
+            throw failure;
+        }
+    }
+
+    /**
+     * Hands an exception that can't be thrown to the current thread's
+     * uncaught exception handler
+     * @param e
+     */
+    private static void report(RuntimeException e){
+        Thread t = Thread.currentThread();
+        t.getUncaughtExceptionHandler().uncaughtException(t, e);
+    }
+
+    private boolean isOverLimit(){
+        return (maxEntries > 0 && slots.size() > maxEntries)
+                || (maxBytes > 0 && bytes > maxBytes);
+    }
+
+    private boolean isExpired(int slot){
+        return expiries[slot] <= System.currentTimeMillis();
+    }
+
+    private ReadWriteLock getLock(Object key){
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    /**
+     * Gives key a slot on the clock
+     * @param key
+     * @param weight
+     * @param expiry
+     */
+    private void track(Object key, int weight, long expiry){
+        int slot;
+        if (freeCount > 0){
+            slot = free[--freeCount];
+        } else {
+            if (highWater == keys.length){
+                grow();
+            }
+            slot = highWater++;
+        }
+        slots.put(key, slot);
+        keys[slot] = key;
+        // new entries start referenced so they survive at least one pass
+        referenced[slot] = true;
+        weights[slot] = weight;
+        expiries[slot] = expiry;
+        bytes += weight;
+    }
+
+    /**
+     * Frees the slot, the entry itself must be removed separately
+     * @param slot
+     * @return what the slot held
+     */
+    @SuppressWarnings("unchecked")
+    private Victim untrack(int slot){
+        Victim victim = new Victim((K) keys[slot], weights[slot], expiries[slot]);
+        slots.remove(keys[slot]);
+        bytes -= weights[slot];
+        keys[slot] = null;
+        referenced[slot] = false;
+        weights[slot] = 0;
+        free[freeCount++] = slot;
+        return victim;
+    }
+
+    private void grow(){
+        int capacity = keys.length * 2;
+        Object[] newKeys = new Object[capacity];
+        boolean[] newReferenced = new boolean[capacity];
+        int[] newWeights = new int[capacity];
+        long[] newExpiries = new long[capacity];
+        int[] newFree = new int[capacity];
+        System.arraycopy(keys, 0, newKeys, 0, highWater);
+        System.arraycopy(referenced, 0, newReferenced, 0, highWater);
+        System.arraycopy(weights, 0, newWeights, 0, highWater);
+        System.arraycopy(expiries, 0, newExpiries, 0, highWater);
+        System.arraycopy(free, 0, newFree, 0, freeCount);
+        keys = newKeys;
+        referenced = newReferenced;
+        weights = newWeights;
+        expiries = newExpiries;
+        free = newFree;
+    }
+
+    /**
+     * Measures how many bytes the entry takes once serialized, which is a
+     * close estimate of its size on disk
+     * @param key
+     * @param value
+     * @return
+     * @throws IOException
+     */
+    private static int weigh(Object key, Object value) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream(counter);
+        os.writeObject(key);
+        os.writeObject(value);
+        os.close();
+        return (int) Math.min(counter.count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * An entry taken off the clock, waiting to be removed from disk
+     */
+    private class Victim {
+        final K key;
+        final int weight;
+        final long expiry;
+
+        Victim(K key, int weight, long expiry){
+            this.key = key;
+            this.weight = weight;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * What the metadata store keeps for each entry
+     */
+    private static class EntryInfo implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int weight;
+        final long expiry;
+
+        EntryInfo(int weight, long expiry){
+            this.weight = weight;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * An OutputStream that throws away everything written to it, but counts it
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private long count = 0;
+
+        public void write(int b){
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len){
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.pavlos.collections.persistent;
+import java.io.IOException;
+
+/**
+ *
+ * Thrown when a consumer of a ChangeLog asks for changes the log doesn't
+ * have any more, because retention deleted them or because they were never
+ * written.  The consumer has missed changes, and has to start over from
+ * the map itself.
+ *
+ * @author Paul Hieromnimon
+ */
+public class FellBehindException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public FellBehindException(String message) {
+        super(message);
+    }
+
+}
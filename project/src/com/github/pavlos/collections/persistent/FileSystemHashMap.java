@@ -7,7 +7,18 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Collection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 
 /**
@@ -21,6 +32,28 @@ import java.util.HashSet;
 public class FileSystemHashMap<K extends Serializable, V extends Serializable> implements IOMap<K,V>{
 
     private final File dataStore;
+    // point-in-time copies of dataStore, made of hard links
+    private final File snapshotStore;
+    // files are written here first and then renamed into place, so that a
+    // reader never sees a half written entry
+    private final File tmpStore;
+    // value hash -> set of keys, or null if the value index is disabled
+    private final File indexStore;
+    // guards read-modify-write cycles on the index buckets
+    private final Object indexLock = new Object();
+    // writers hold the read lock for the whole of a change, so that
+    // rebuildValueIndex, which holds the write lock, sees each change either
+    // before it starts or after it's finished
+    private final ReadWriteLock indexRebuildLock = new ReentrantReadWriteLock();
+    // writers hold the read lock while they change an entry (clear and
+    // putAll for the whole of their changes, so a snapshot sees all or none
+    // of them), and snapshot() holds the write lock just long enough to
+    // register a new snapshot.  Always taken after indexRebuildLock
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    // snapshots that have been started but whose links aren't all made yet
+    private final List<File> pendingSnapshots = new CopyOnWriteArrayList<File>();
+    // true for the views of snapshots
+    private final boolean readOnly;
 
     /**
      *
@@ -28,9 +61,63 @@ public class FileSystemHashMap<K extends Serializable, V extends Serializable> i
      * @throws IOException
      */
     public FileSystemHashMap(String dataStore) throws IOException{
+        this(dataStore, false);
+    }
+
+    /**
+     *
+     * @param dataStore location of where you want entries to be stored
+     * @param valueIndex true to maintain a persistent index from value hash
+     * codes to keys, which makes containsValue and keysForValue cheap. If the
+     * store has no index yet, it is built from the existing entries.
+     * @throws IOException
+     */
+    public FileSystemHashMap(String dataStore, boolean valueIndex) throws IOException{
+        this(dataStore, valueIndex, false);
+    }
+
+    /**
+     * Opens a store, or a read only view of one, which is what Snapshot uses
+     * @param dataStore location of where you want entries to be stored
+     * @param valueIndex see above
+     * @param readOnly true to refuse every change to the map
+     * @throws IOException
+     */
+    FileSystemHashMap(String dataStore, boolean valueIndex, boolean readOnly)
+            throws IOException{
         // TODO: add a constructor that takes an instance of File
         this.dataStore = new File(dataStore + File.separator + "data");
+        this.tmpStore = new File(dataStore + File.separator + "tmp");
+        this.snapshotStore = new File(dataStore + File.separator + "snapshots");
+        this.readOnly = readOnly;
+        if (readOnly){
+            if (valueIndex){
+                throw new IllegalArgumentException(
+                        "a read only map can't maintain a value index");
+            }
+            this.indexStore = null;
+            return;
+        }
         this.dataStore.mkdirs();
+        this.tmpStore.mkdirs();
+        this.snapshotStore.mkdirs();
+        // anything still in tmp was being written when a put failed or the
+        // process died, and was never renamed into place
+        deleteDirectoryContents(tmpStore);
+        deleteIncompleteSnapshots();
+
+        File index = new File(dataStore + File.separator + "index");
+        if (valueIndex){
+            this.indexStore = index;
+            if (!indexStore.exists()){
+                rebuildValueIndex();
+            }
+        } else {
+            this.indexStore = null;
+            // an index left behind by an earlier indexed instance would go
+            // stale as soon as we write without maintaining it
+            deleteDirectory(index);
+        }
     }
 
     /**
@@ -84,18 +171,31 @@ public class FileSystemHashMap<K extends Serializable, V extends Serializable> i
      * @throws IOException
      */
     public V put(K key, V value) throws IOException {
-        // return the value previously stored
-        V previous = get(key);
-        String filename = generateFilename(key);
+        checkWritable();
+        indexRebuildLock.readLock().lock();
+        try{
+            // return the value previously stored
+            V previous = get(key);
+            File f = generateFile(key);
+            boolean existed = f.exists();
 
-        ObjectOutputStream os = new ObjectOutputStream(
-                                    new FileOutputStream(filename)
-                                    );
-        os.writeObject(key);
-        os.writeObject(value);
-        os.close();
+            // the index is only ever allowed to hold too many keys, never too
+            // few, so add the new mapping before writing and drop the old one after
+            if (isValueIndexed()){
+                addToValueIndex(key, value);
+            }
+
+            writeEntry(f, key, value);
+
+            if (isValueIndexed() && existed
+                    && valueHash(previous) != valueHash(value)){
+                removeFromValueIndex(key, previous);
+            }
 
-        return previous;
+            return previous;
+        } finally {
+            indexRebuildLock.readLock().unlock();
+        }
     }
 
     /**
@@ -105,11 +205,19 @@ public class FileSystemHashMap<K extends Serializable, V extends Serializable> i
      * @throws IOException
      */
     public V remove(Object key) throws IOException {
-        // need to return the previous value before removing
-        V previous = get(key);
-        File f = generateFile(key);
-        f.delete();
-        return previous;
+        checkWritable();
+        indexRebuildLock.readLock().lock();
+        try{
+            // need to return the previous value before removing
+            V previous = get(key);
+            File f = generateFile(key);
+            if (deleteEntry(f) && isValueIndexed()){
+                removeFromValueIndex(key, previous);
+            }
+            return previous;
+        } finally {
+            indexRebuildLock.readLock().unlock();
+        }
     }
 
     /**
@@ -118,11 +226,19 @@ public class FileSystemHashMap<K extends Serializable, V extends Serializable> i
      * @throws IOException
      */
     public void putAll(Map<? extends K, ? extends V> m) throws IOException{
+        checkWritable();
         //TODO: try to figure out how to make this atomic in case IOException
         //gets thrown in the middle of inserting the set
-        Set<? extends K> keySet = m.keySet();
-        for (K k: keySet){
-            put(k, m.get(k));
+        indexRebuildLock.readLock().lock();
+        snapshotLock.readLock().lock();
+        try{
+            Set<? extends K> keySet = m.keySet();
+            for (K k: keySet){
+                put(k, m.get(k));
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+            indexRebuildLock.readLock().unlock();
         }
     }
 
@@ -130,8 +246,27 @@ public class FileSystemHashMap<K extends Serializable, V extends Serializable> i
      * Deletes all the entries in this map
      */
     public void clear(){
-        for (File f : getFiles()){
-            f.delete();
+        checkWritable();
+        indexRebuildLock.readLock().lock();
+        snapshotLock.readLock().lock();
+        try{
+            for (File f : getFiles()){
+                try{
+                    deleteEntry(f);
+                } catch (IOException e){
+                    throw new RuntimeIOException(e);
+                }
+            }
+            if (isValueIndexed()){
+                synchronized (indexLock){
+                    for (File f : indexStore.listFiles()){
+                        f.delete();
+                    }
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+            indexRebuildLock.readLock().unlock();
         }
     }
 
@@ -142,14 +277,75 @@ public class FileSystemHashMap<K extends Serializable, V extends Serializable> i
      * @throws IOException
      */
     public boolean containsValue(Object value) throws IOException{
+        if (isValueIndexed()){
+            return !findKeysForValue(value).isEmpty();
+        }
         for (File f: getFiles()){
-            if (getEntry(f.getPath()).getValue().equals(value)){
+            Entry<K,V> entry = getEntry(f.getPath());
+            if (entry != null && valueEquals(entry.getValue(), value)){
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Finds every key that is mapped to the value
+     * @param value
+     * @return the keys mapped to value, empty if there are none
+     * @throws IOException
+     */
+    public Set<K> keysForValue(V value) throws IOException{
+        return findKeysForValue(value);
+    }
+
+    /**
+     *
+     * @return true if this map maintains a value index
+     */
+    public boolean isValueIndexed(){
+        return indexStore != null;
+    }
+
+    /**
+     * Throws away the value index and builds it again from the entries in
+     * the map.  Useful if the index was lost or damaged.  Changes to the map
+     * wait until the rebuild is done.
+     * @throws IOException
+     */
+    public void rebuildValueIndex() throws IOException{
+        if (!isValueIndexed()){
+            throw new IllegalStateException("value index is not enabled");
+        }
+        indexRebuildLock.writeLock().lock();
+        try{
+            synchronized (indexLock){
+                // build the new index off to the side and swap it in when it's
+                // complete, so a crash never leaves a half built index behind
+                File building = new File(indexStore.getPath() + ".tmp");
+                deleteDirectory(building);
+                building.mkdirs();
+                for (File f: getFiles()){
+                    Entry<K,V> entry = getEntry(f.getPath());
+                    if (entry != null){
+                        File bucket = new File(building,
+                                String.valueOf(valueHash(entry.getValue())));
+                        Set<K> keys = readBucket(bucket);
+                        keys.add(entry.getKey());
+                        writeObjects(bucket, keys);
+                    }
+                }
+                deleteDirectory(indexStore);
+                if (!building.renameTo(indexStore)){
+                    throw new IOException("could not move " + building
+                            + " to " + indexStore);
+                }
+            }
+        } finally {
+            indexRebuildLock.writeLock().unlock();
+        }
+    }
+
     /**
      *
      * @return a collection of all the values in this Map
@@ -193,8 +389,396 @@ public class FileSystemHashMap<K extends Serializable, V extends Serializable> i
         return entrySet;
     }
 
+    /**
+     * Takes a consistent, read only, point-in-time copy of this map.
+     *
+     * The copy is made of hard links to the entry files, and since entries
+     * are never overwritten in place (a new file is renamed over the old
+     * one) the linked files never change.  Writers are only held up while
+     * the snapshot is registered; while the links are being made, a writer
+     * that is about to replace or delete an entry links the old file into the
+     * snapshot first, or marks the entry as absent if it is new.  A clear
+     * or putAll in progress is waited for, so the snapshot has all of its
+     * changes or none of them.
+     *
+     * Everything in the snapshot is synced to disk before it is marked
+     * complete, so a snapshot that survives a power loss is whole.
+     *
+     * @return the snapshot, which stays on disk until it is deleted
+     * @throws IOException
+     */
+    public Snapshot<K,V> snapshot() throws IOException{
+        checkWritable();
+        File dir = createSnapshotDirectory();
+        File data = new File(dir, "data");
+        File absent = new File(dir, "absent");
+        if (!data.mkdir() || !absent.mkdir()){
+            deleteSnapshotDirectory(dir);
+            throw new IOException("could not create snapshot in " + dir);
+        }
+
+        snapshotLock.writeLock().lock();
+        try{
+            pendingSnapshots.add(dir);
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+
+        boolean complete = false;
+        try{
+            for (File f: getFiles()){
+                preserve(dir, f);
+            }
+
+            // the marker must not reach the disk before what it vouches for:
+            // the entries (which put doesn't sync) and the links to them
+            for (File f: data.listFiles()){
+                syncFile(f);
+            }
+            syncDirectory(data);
+            File marker = new File(dir, Snapshot.COMPLETE);
+            if (!marker.createNewFile()){
+                throw new IOException("could not complete snapshot " + dir);
+            }
+            syncFile(marker);
+            syncDirectory(dir);
+            syncDirectory(snapshotStore);
+            complete = true;
+        } finally {
+            snapshotLock.writeLock().lock();
+            try{
+                pendingSnapshots.remove(dir);
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+            deleteDirectory(absent);
+            if (!complete){
+                deleteSnapshotDirectory(dir);
+            }
+        }
+        return new Snapshot<K,V>(dir);
+    }
+
+    /**
+     *
+     * @return every complete snapshot of this map, oldest first
+     */
+    public List<Snapshot<K,V>> snapshots(){
+        List<Snapshot<K,V>> snapshots = new ArrayList<Snapshot<K,V>>();
+        File[] dirs = snapshotStore.listFiles();
+        if (dirs == null){
+            return snapshots;
+        }
+        Arrays.sort(dirs);
+        for (File dir: dirs){
+            if (new File(dir, Snapshot.COMPLETE).exists()){
+                snapshots.add(new Snapshot<K,V>(dir));
+            }
+        }
+        return snapshots;
+    }
+
     /****Private Helper Methods ****/
 
+    private void checkWritable(){
+        if (readOnly){
+            throw new UnsupportedOperationException("this map is read only");
+        }
+    }
+
+    /**
+     * Creates an empty directory for a new snapshot, named after the current
+     * time so that snapshots sort oldest first
+     * @return
+     * @throws IOException
+     */
+    private File createSnapshotDirectory() throws IOException{
+        for (long id = System.currentTimeMillis(); ; id++){
+            File dir = new File(snapshotStore, String.format("%019d", id));
+            if (dir.mkdir()){
+                return dir;
+            }
+            if (!snapshotStore.isDirectory()){
+                throw new IOException("could not create snapshot in "
+                        + snapshotStore);
+            }
+        }
+    }
+
+    /**
+     * Snapshots that never got their COMPLETE marker were interrupted by a
+     * crash, and are missing entries, so get rid of them
+     */
+    private void deleteIncompleteSnapshots(){
+        for (File dir: snapshotStore.listFiles()){
+            if (!new File(dir, Snapshot.COMPLETE).exists()){
+                deleteSnapshotDirectory(dir);
+            }
+        }
+    }
+
+    static void deleteSnapshotDirectory(File dir){
+        // the marker goes first, so a half deleted snapshot counts as incomplete
+        new File(dir, Snapshot.COMPLETE).delete();
+        deleteDirectory(new File(dir, "data"));
+        deleteDirectory(new File(dir, "absent"));
+        deleteDirectory(dir);
+    }
+
+    /**
+     * Writes an entry, first saving the old one for any snapshot in progress
+     * @param f
+     * @param key
+     * @param value
+     * @throws IOException
+     */
+    private void writeEntry(File f, K key, V value) throws IOException{
+        snapshotLock.readLock().lock();
+        try{
+            preservePending(f);
+            writeObjects(f, key, value);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes an entry, first saving it for any snapshot in progress
+     * @param f
+     * @return true if there was an entry to delete
+     * @throws IOException
+     */
+    private boolean deleteEntry(File f) throws IOException{
+        snapshotLock.readLock().lock();
+        try{
+            preservePending(f);
+            return f.delete();
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    private void preservePending(File f) throws IOException{
+        for (File snapshot: pendingSnapshots){
+            preserve(snapshot, f);
+        }
+    }
+
+    /**
+     * Puts the entry file f, as it is now, into the snapshot unless the
+     * snapshot already has it or knows it didn't exist.  The first call for
+     * a given entry wins, whether it comes from snapshot() or from a writer.
+     * @param snapshot
+     * @param f
+     * @throws IOException
+     */
+    private void preserve(File snapshot, File f) throws IOException{
+        File absent = new File(snapshot, "absent" + File.separator + f.getName());
+        if (absent.exists()){
+            return;
+        }
+        File target = new File(snapshot, "data" + File.separator + f.getName());
+        if (!f.exists()){
+            // created after the snapshot was taken, so it must stay out
+            if (!target.exists()){
+                absent.createNewFile();
+            }
+            return;
+        }
+        try{
+            Files.createLink(target.toPath(), f.toPath());
+        } catch (FileAlreadyExistsException e){
+            // someone got there first
+        } catch (NoSuchFileException e){
+            // deleted after we looked, and whoever deleted it saved it first
+        } catch (UnsupportedOperationException e){
+            // no hard links on this file system.  the copy reads whichever
+            // file f names right now, which is still the right version
+            // because a replaced file is never written to again
+            try{
+                Files.copy(f.toPath(), target.toPath());
+            } catch (FileAlreadyExistsException e2){
+                // as above
+            } catch (NoSuchFileException e2){
+                // as above
+            }
+        }
+    }
+
+    /**
+     * Looks up all the keys mapped to value, using the index if there is one
+     * and scanning every entry otherwise
+     * @param value
+     * @return
+     * @throws IOException
+     */
+    private Set<K> findKeysForValue(Object value) throws IOException{
+        Set<K> keys = new HashSet<K>();
+        if (isValueIndexed()){
+            Set<K> candidates;
+            synchronized (indexLock){
+                candidates = readBucket(generateBucket(value));
+            }
+            // the bucket may hold keys whose values merely share a hash code,
+            // or keys that are about to be removed, so check each one
+            for (K k: candidates){
+                Entry<K,V> entry = getEntry(generateFilename(k));
+                if (entry != null && valueEquals(entry.getValue(), value)){
+                    keys.add(entry.getKey());
+                }
+            }
+        } else {
+            for (File f: getFiles()){
+                Entry<K,V> entry = getEntry(f.getPath());
+                if (entry != null && valueEquals(entry.getValue(), value)){
+                    keys.add(entry.getKey());
+                }
+            }
+        }
+        return keys;
+    }
+
+    private void addToValueIndex(K key, Object value) throws IOException{
+        synchronized (indexLock){
+            File bucket = generateBucket(value);
+            Set<K> keys = readBucket(bucket);
+            if (keys.add(key)){
+                writeObjects(bucket, keys);
+            }
+        }
+    }
+
+    private void removeFromValueIndex(Object key, Object value) throws IOException{
+        synchronized (indexLock){
+            File bucket = generateBucket(value);
+            Set<K> keys = readBucket(bucket);
+            if (keys.remove(key)){
+                if (keys.isEmpty()){
+                    bucket.delete();
+                } else {
+                    writeObjects(bucket, keys);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index file holding the keys of every entry whose value
+     * has the same hash code as value
+     * @param value
+     * @return
+     */
+    private File generateBucket(Object value){
+        return new File(indexStore, String.valueOf(valueHash(value)));
+    }
+
+    /**
+     * Reads the set of keys stored in an index bucket
+     * @param bucket
+     * @return the keys in the bucket, or an empty set if there is no bucket
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private Set<K> readBucket(File bucket) throws IOException{
+        try{
+            ObjectInputStream is = new ObjectInputStream(
+                                        new FileInputStream(bucket)
+                                        );
+            try{
+                return (Set<K>) is.readObject();
+            } finally {
+                is.close();
+            }
+        } catch (FileNotFoundException e){
+            return new HashSet<K>();
+        } catch (ClassNotFoundException e){
+            throw new IOException("corrupt value index bucket " + bucket);
+        }
+    }
+
+    private static int valueHash(Object value){
+        return (value == null) ? 0 : value.hashCode();
+    }
+
+    private static boolean valueEquals(Object a, Object b){
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    /**
+     * Serializes objects to a temporary file, then renames it over file so
+     * that readers see either the old contents or the new, never a mix
+     * @param file
+     * @param objects
+     * @throws IOException
+     */
+    private void writeObjects(File file, Object... objects) throws IOException{
+        File tmp = File.createTempFile("entry", null, tmpStore);
+        boolean moved = false;
+        try{
+            ObjectOutputStream os = new ObjectOutputStream(
+                                        new FileOutputStream(tmp)
+                                        );
+            try{
+                for (Object o: objects){
+                    os.writeObject(o);
+                }
+            } finally {
+                os.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            // a value that can't be serialized, a full disk or a failed
+            // rename would otherwise leave the file behind for good
+            if (!moved){
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Forces a file's contents to disk
+     * @param f
+     * @throws IOException
+     */
+    static void syncFile(File f) throws IOException{
+        FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try{
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Forces a directory's entries to disk, so that files created, linked or
+     * renamed in it survive a power loss
+     * @param dir
+     */
+    static void syncDirectory(File dir){
+        try{
+            syncFile(dir);
+        } catch (IOException e){
+            // some platforms, Windows among them, can't open a directory,
+            // and don't need to for its entries to be durable
+        }
+    }
+
+    static void deleteDirectory(File dir){
+        deleteDirectoryContents(dir);
+        dir.delete();
+    }
+
+    private static void deleteDirectoryContents(File dir){
+        File[] files = dir.listFiles();
+        if (files != null){
+            for (File f: files){
+                f.delete();
+            }
+        }
+    }
+
     /**
      * Generates a filename for key, essentially returns the String
      * representation of dataStore + key.hashCode()
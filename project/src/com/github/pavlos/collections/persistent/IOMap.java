@@ -42,6 +42,21 @@ public interface IOMap<K extends Serializable, V extends Serializable> {
     
     public boolean containsValue(Object value) throws IOException;
 
+    /**
+     *
+     * @param value
+     * @return every key that is mapped to value
+     * @throws IOException
+     */
+    public Set<K> keysForValue(V value) throws IOException;
+
+    /**
+     *
+     * @return true if containsValue and keysForValue are answered from an
+     * index instead of scanning every entry
+     */
+    public boolean isValueIndexed();
+
     public Collection<V> values() throws IOException;
 
     public Set<K> keySet() throws IOException;
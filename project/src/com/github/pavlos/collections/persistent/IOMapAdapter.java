@@ -69,6 +69,14 @@ public class IOMapAdapter<K extends Serializable, V extends Serializable>
         }
     }
 
+    public Set<K> keysForValue(V value) {
+        try{
+            return map.keysForValue(value);
+        } catch (IOException e){
+            throw new RuntimeIOException(e);
+        }
+    }
+
     public Set<Entry<K, V>> entrySet() {
         try{
             return map.entrySet();
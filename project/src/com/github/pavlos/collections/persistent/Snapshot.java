@@ -0,0 +1,146 @@
+package com.github.pavlos.collections.persistent;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ *
+ * A point-in-time copy of a FileSystemHashMap, taken by
+ * FileSystemHashMap.snapshot().  It lives in its own directory under the
+ * map's "snapshots" directory, laid out like a store, so it can be read as a
+ * map or copied somewhere else as a backup.
+ *
+ * @author Paul Hieromnimon
+ */
+public class Snapshot<K extends Serializable, V extends Serializable> {
+
+    // written once every entry has been linked into the snapshot
+    static final String COMPLETE = "complete";
+    // names the entries an incremental backup no longer has
+    static final String DELETED = "deleted";
+
+    private final File directory;
+
+    Snapshot(File directory){
+        this.directory = directory;
+    }
+
+    /**
+     *
+     * @return the snapshot's id, higher for later snapshots of the same map
+     */
+    public long getId(){
+        return Long.parseLong(directory.getName());
+    }
+
+    public File getDirectory(){
+        return directory;
+    }
+
+    /**
+     *
+     * @return a read only view of the map as it was when the snapshot was taken
+     * @throws IOException
+     */
+    public IOMap<K,V> getMap() throws IOException{
+        checkExists();
+        return new FileSystemHashMap<K,V>(directory.getPath(), false, true);
+    }
+
+    /**
+     * Copies this snapshot to destination.  If since is null, every entry is
+     * copied and destination can be opened as a FileSystemHashMap.  Otherwise
+     * only the entries added or changed after since are copied, and the
+     * entries removed since then are listed, one file name per line, in
+     * destination/deleted.  Restoring is a matter of copying a full backup,
+     * then for each incremental backup in order copying its data directory
+     * over and deleting the files it lists.
+     *
+     * The backup is built in a temporary directory next to destination,
+     * synced to disk, and then renamed to destination, so destination only
+     * ever exists once the backup is whole.  A backup interrupted by a crash
+     * can simply be run again.
+     * @param destination directory to back up to, which must not exist yet
+     * @param since an earlier snapshot of the same map, or null
+     * @throws IOException
+     */
+    public void backupTo(File destination, Snapshot<K,V> since) throws IOException{
+        checkExists();
+        if (since != null){
+            since.checkExists();
+        }
+        if (destination.exists()){
+            throw new IOException("could not create backup in " + destination
+                    + ", it already exists");
+        }
+        // left behind if an earlier attempt was interrupted
+        File building = new File(destination.getPath() + ".tmp");
+        deleteBackupDirectory(building);
+        File target = new File(building, "data");
+        if (!target.mkdirs()){
+            throw new IOException("could not create backup in " + building);
+        }
+
+        File data = new File(directory, "data");
+        File previous = (since == null) ? null : new File(since.directory, "data");
+        for (File f: data.listFiles()){
+            // an entry that hasn't been written in between is the very same
+            // file in both snapshots
+            File old = (previous == null) ? null : new File(previous, f.getName());
+            if (old == null || !old.exists()
+                    || !Files.isSameFile(old.toPath(), f.toPath())){
+                File copy = new File(target, f.getName());
+                Files.copy(f.toPath(), copy.toPath(),
+                        StandardCopyOption.COPY_ATTRIBUTES);
+                FileSystemHashMap.syncFile(copy);
+            }
+        }
+        FileSystemHashMap.syncDirectory(target);
+
+        if (previous != null){
+            FileOutputStream out = new FileOutputStream(new File(building, DELETED));
+            Writer deleted = new OutputStreamWriter(out, "UTF-8");
+            try{
+                for (File old: previous.listFiles()){
+                    if (!new File(data, old.getName()).exists()){
+                        deleted.write(old.getName());
+                        deleted.write('\n');
+                    }
+                }
+                deleted.flush();
+                out.getFD().sync();
+            } finally {
+                deleted.close();
+            }
+        }
+        FileSystemHashMap.syncDirectory(building);
+
+        Files.move(building.toPath(), destination.toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+        FileSystemHashMap.syncDirectory(destination.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Removes the snapshot from disk.  Entries still used by the map or by
+     * other snapshots are unaffected, since they are only unlinked.
+     */
+    public void delete(){
+        FileSystemHashMap.deleteSnapshotDirectory(directory);
+    }
+
+    private static void deleteBackupDirectory(File dir){
+        FileSystemHashMap.deleteDirectory(new File(dir, "data"));
+        FileSystemHashMap.deleteDirectory(dir);
+    }
+
+    private void checkExists() throws IOException{
+        if (!new File(directory, COMPLETE).exists()){
+            throw new IOException("snapshot " + directory + " does not exist");
+        }
+    }
+}
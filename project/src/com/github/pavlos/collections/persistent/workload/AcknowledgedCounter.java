@@ -0,0 +1,63 @@
+package com.github.pavlos.collections.persistent.workload;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *
+ * Hands out the numbers of records to insert, and keeps track of how many
+ * records can be read, as YCSB's acknowledged counter does.  Inserts finish
+ * out of order, so a record only counts once every record numbered below it
+ * has been inserted too; until then reads could miss it.
+ *
+ * @author Paul Hieromnimon
+ */
+public class AcknowledgedCounter {
+
+    private long next;
+    // every record below this has been inserted
+    private volatile long limit;
+    // inserted records at or above limit
+    private final Set<Long> acknowledged = new HashSet<Long>();
+
+    /**
+     *
+     * @param start number of records already there
+     */
+    public AcknowledgedCounter(long start){
+        this.next = start;
+        this.limit = start;
+    }
+
+    /**
+     *
+     * @return number of the next record to insert
+     */
+    public synchronized long next(){
+        return next++;
+    }
+
+    /**
+     * Records that an insert handed out by next() is done
+     * @param record
+     */
+    public synchronized void acknowledge(long record){
+        if (record != limit){
+            acknowledged.add(record);
+            return;
+        }
+        long l = limit + 1;
+        while (acknowledged.remove(l)){
+            l++;
+        }
+        limit = l;
+    }
+
+    /**
+     *
+     * @return number of records that can be read
+     */
+    public long getLimit(){
+        return limit;
+    }
+}
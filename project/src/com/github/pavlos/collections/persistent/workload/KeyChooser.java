@@ -0,0 +1,21 @@
+package com.github.pavlos.collections.persistent.workload;
+
+import java.util.Random;
+
+/**
+ *
+ * Picks which record an operation works on
+ *
+ * @author Paul Hieromnimon
+ */
+public interface KeyChooser {
+
+    /**
+     *
+     * @param random the calling thread's source of randomness
+     * @param records number of records to choose from, which grows as
+     * records are inserted
+     * @return a record number from 0 up to, but not including, records
+     */
+    long next(Random random, long records);
+}
@@ -0,0 +1,124 @@
+package com.github.pavlos.collections.persistent.workload;
+
+import java.util.Arrays;
+
+/**
+ *
+ * Counts latencies, in microseconds, in buckets that are exact below 1024
+ * and get wider above that so that every bucket is within about 0.2% of the
+ * values in it.  That's precise enough for percentiles while taking a fixed,
+ * small amount of memory.  All methods are synchronized so that a reporting
+ * thread can read a histogram while a worker is adding to it.
+ *
+ * @author Paul Hieromnimon
+ */
+public class LatencyHistogram {
+
+    // values below this get a bucket each
+    private static final int LINEAR = 1024;
+    // number of buckets per power of two above that
+    private static final int SUB_BUCKETS = LINEAR / 2;
+    // enough buckets for any long
+    static final int BUCKETS = LINEAR + 53 * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * Adds one latency
+     * @param micros
+     */
+    public synchronized void record(long micros){
+        if (micros < 0){
+            micros = 0;
+        }
+        counts[bucketFor(micros)]++;
+        count++;
+        sum += micros;
+        max = Math.max(max, micros);
+    }
+
+    /**
+     * Adds everything counted by this histogram to other, then empties this one
+     * @param other
+     */
+    public synchronized void drainTo(LatencyHistogram other){
+        other.add(counts, count, sum, max);
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    /**
+     * Adds everything counted by this histogram to other
+     * @param other
+     */
+    public synchronized void copyTo(LatencyHistogram other){
+        other.add(counts, count, sum, max);
+    }
+
+    public synchronized long getCount(){
+        return count;
+    }
+
+    public synchronized long getMax(){
+        return max;
+    }
+
+    public synchronized double getMean(){
+        return (count == 0) ? 0 : (double) sum / count;
+    }
+
+    /**
+     *
+     * @param percentile between 0 and 100
+     * @return the smallest latency that at least percentile percent of the
+     * recorded latencies are no higher than, to within a bucket's width
+     */
+    public synchronized long getPercentile(double percentile){
+        if (count == 0){
+            return 0;
+        }
+        long wanted = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++){
+            seen += counts[b];
+            if (seen >= Math.max(wanted, 1)){
+                return Math.min(highestValueIn(b), max);
+            }
+        }
+        return max;
+    }
+
+    private synchronized void add(long[] otherCounts, long otherCount,
+            long otherSum, long otherMax){
+        for (int b = 0; b < BUCKETS; b++){
+            counts[b] += otherCounts[b];
+        }
+        count += otherCount;
+        sum += otherSum;
+        max = Math.max(max, otherMax);
+    }
+
+    static int bucketFor(long value){
+        if (value < LINEAR){
+            return (int) value;
+        }
+        // how far to shift value so that it lands in [SUB_BUCKETS, LINEAR)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 9;
+        return LINEAR + (shift - 1) * SUB_BUCKETS
+                + (int) ((value >> shift) - SUB_BUCKETS);
+    }
+
+    static long highestValueIn(int bucket){
+        if (bucket < LINEAR){
+            return bucket;
+        }
+        int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        long lowest = ((long) ((bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.pavlos.collections.persistent.workload;
+
+import java.util.Random;
+
+/**
+ *
+ * Picks every record with the same probability
+ *
+ * @author Paul Hieromnimon
+ */
+public class UniformKeyChooser implements KeyChooser {
+
+    public long next(Random random, long records){
+        // nextDouble is uniform enough, and works for more than 2^31 records
+        return (long) (random.nextDouble() * records);
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.pavlos.collections.persistent.workload;
+
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ *
+ * Describes a workload: how many records to load, what mix of operations to
+ * run on them, and how hard.  The properties are named after YCSB's, so its
+ * core workload files mostly work unchanged.
+ *
+ * @author Paul Hieromnimon
+ */
+public class Workload {
+
+    public enum Operation {
+        READ,
+        UPDATE,
+        INSERT,
+        // reads scanlength consecutively numbered records
+        SCAN,
+        READ_MODIFY_WRITE
+    }
+
+    // records put in the map before the measured run
+    final long recordCount;
+    // operations in the measured run, zero for no limit
+    final long operationCount;
+    // length of the measured run in seconds, zero for no limit
+    final long maxExecutionTime;
+    final int threadCount;
+    // operations per second over all threads, zero to go flat out
+    final double target;
+    final String requestDistribution;
+    final double zipfianConstant;
+    final String fieldLengthDistribution;
+    final int minFieldLength;
+    final int fieldLength;
+    final int scanLength;
+    // seconds between progress reports
+    final int reportInterval;
+
+    // cumulative proportions, in the order of Operation
+    private final double[] mix;
+
+    /**
+     *
+     * @param p workload properties, anything missing gets YCSB's default
+     */
+    public Workload(Properties p){
+        recordCount = Long.parseLong(p.getProperty("recordcount", "1000"));
+        operationCount = Long.parseLong(p.getProperty("operationcount", "1000"));
+        maxExecutionTime = Long.parseLong(p.getProperty("maxexecutiontime", "0"));
+        threadCount = Integer.parseInt(p.getProperty("threadcount", "1"));
+        target = Double.parseDouble(p.getProperty("target", "0"));
+        requestDistribution = p.getProperty("requestdistribution", "uniform");
+        zipfianConstant = Double.parseDouble(p.getProperty("zipfianconstant",
+                String.valueOf(ZipfianKeyChooser.DEFAULT_CONSTANT)));
+        fieldLengthDistribution = p.getProperty("fieldlengthdistribution", "constant");
+        fieldLength = Integer.parseInt(p.getProperty("fieldlength", "100"));
+        minFieldLength = Integer.parseInt(p.getProperty("minfieldlength", "1"));
+        scanLength = Integer.parseInt(p.getProperty("scanlength", "10"));
+        reportInterval = Integer.parseInt(p.getProperty("reportinterval", "10"));
+
+        double[] proportions = new double[] {
+            Double.parseDouble(p.getProperty("readproportion", "0.95")),
+            Double.parseDouble(p.getProperty("updateproportion", "0.05")),
+            Double.parseDouble(p.getProperty("insertproportion", "0")),
+            Double.parseDouble(p.getProperty("scanproportion", "0")),
+            Double.parseDouble(p.getProperty("readmodifywriteproportion", "0"))
+        };
+        double total = 0;
+        for (double d: proportions){
+            total += d;
+        }
+        if (total <= 0){
+            throw new IllegalArgumentException("no operations in the mix");
+        }
+        mix = new double[proportions.length];
+        double running = 0;
+        for (int i = 0; i < proportions.length; i++){
+            running += proportions[i] / total;
+            mix[i] = running;
+        }
+
+        if (threadCount < 1 || recordCount < 1){
+            throw new IllegalArgumentException(
+                    "threadcount and recordcount must be at least 1");
+        }
+        if (!"constant".equals(fieldLengthDistribution)
+                && !"uniform".equals(fieldLengthDistribution)){
+            throw new IllegalArgumentException("unknown fieldlengthdistribution "
+                    + fieldLengthDistribution);
+        }
+    }
+
+    /**
+     *
+     * @return a key chooser over the loaded records, following requestdistribution
+     */
+    public KeyChooser newKeyChooser(){
+        if ("uniform".equals(requestDistribution)){
+            return new UniformKeyChooser();
+        } else if ("zipfian".equals(requestDistribution)){
+            return new ZipfianKeyChooser(recordCount, zipfianConstant);
+        }
+        throw new IllegalArgumentException("unknown requestdistribution "
+                + requestDistribution);
+    }
+
+    public Operation nextOperation(Random random){
+        double d = random.nextDouble();
+        Operation[] operations = Operation.values();
+        for (int i = 0; i < operations.length - 1; i++){
+            if (d < mix[i]){
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    /**
+     *
+     * @param random
+     * @return a value whose size follows fieldlengthdistribution
+     */
+    public byte[] nextValue(Random random){
+        int length = fieldLength;
+        if ("uniform".equals(fieldLengthDistribution)){
+            length = minFieldLength
+                    + random.nextInt(Math.max(1, fieldLength - minFieldLength + 1));
+        }
+        byte[] value = new byte[length];
+        random.nextBytes(value);
+        return value;
+    }
+
+    /**
+     *
+     * @param record
+     * @return the key of a record
+     */
+    public static String key(long record){
+        return "user" + record;
+    }
+}
@@ -0,0 +1,358 @@
+package com.github.pavlos.collections.persistent.workload;
+
+import com.github.pavlos.collections.persistent.ConcurrentHashMap;
+import com.github.pavlos.collections.persistent.FileSystemHashMap;
+import com.github.pavlos.collections.persistent.IOMap;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * Runs a Workload against an IOMap from several threads and reports
+ * throughput, latency percentiles and disk usage as it goes, in the manner
+ * of YCSB.  Meant for capacity planning and for catching regressions in the
+ * collections, not for comparing against other stores.
+ *
+ * When a target throughput is set, every operation has a time it should
+ * start at, and its latency is measured from then rather than from when it
+ * actually started.  That way a stall shows up in the latency of every
+ * operation that was held up behind it, not just the one that stalled.
+ *
+ * From the command line:
+ *
+ *   WorkloadDriver [-P workload.properties] [-p name=value]...
+ *
+ * Besides the Workload properties, "store" is the directory to keep the map
+ * in, "map" is "filesystem" for a bare FileSystemHashMap or "concurrent" (the
+ * default) to wrap it in a ConcurrentHashMap, "valueindex" turns on the value
+ * index, and "load" set to false skips loading the records.  Disk usage is
+ * that of the live store, without its snapshots.
+ *
+ * @author Paul Hieromnimon
+ */
+public class WorkloadDriver {
+
+    private static final long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+    // where FileSystemHashMap keeps its snapshots
+    private static final String SNAPSHOTS = "snapshots";
+
+    private final Workload workload;
+    private final IOMap<String, byte[]> map;
+    // null if disk usage shouldn't be reported
+    private final File store;
+    private final PrintStream out;
+
+    private final KeyChooser chooser;
+    // numbers the inserted records, and tells reads how far they can go
+    private final AcknowledgedCounter inserts;
+    // operations left to hand out
+    private final AtomicLong remaining = new AtomicLong();
+    private volatile boolean stopped = false;
+
+    /**
+     *
+     * @param workload what to run
+     * @param map map to run it against
+     * @param store directory the map keeps its files in, or null
+     * @param out where to report to
+     */
+    public WorkloadDriver(Workload workload, IOMap<String, byte[]> map,
+            File store, PrintStream out){
+        this.workload = workload;
+        this.map = map;
+        this.store = store;
+        this.out = out;
+        this.chooser = workload.newKeyChooser();
+        this.inserts = new AcknowledgedCounter(workload.recordCount);
+    }
+
+    /**
+     * Puts recordcount records in the map, split over threadcount threads
+     * @throws InterruptedException
+     */
+    public void load() throws InterruptedException {
+        final AtomicLong failures = new AtomicLong();
+        long start = System.nanoTime();
+        Thread[] threads = new Thread[workload.threadCount];
+        for (int t = 0; t < threads.length; t++){
+            final int first = t;
+            threads[t] = new Thread("loader-" + t){
+                public void run(){
+                    Random random = new Random();
+                    for (long r = first; r < workload.recordCount; r += workload.threadCount){
+                        try{
+                            map.put(Workload.key(r), workload.nextValue(random));
+                        } catch (IOException e){
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t: threads){
+            t.join();
+        }
+        double seconds = (System.nanoTime() - start) / (double) NANOS_PER_SECOND;
+        out.printf("[LOAD] Records=%d Errors=%d RunTime(s)=%.1f Throughput(ops/sec)=%.1f%s%n",
+                workload.recordCount, failures.get(), seconds,
+                workload.recordCount / seconds, diskUsage());
+    }
+
+    /**
+     * Runs the operations, reporting every reportinterval seconds and
+     * summing up at the end
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException {
+        remaining.set(workload.operationCount > 0
+                ? workload.operationCount : Long.MAX_VALUE);
+        stopped = false;
+
+        Worker[] workers = new Worker[workload.threadCount];
+        Thread[] threads = new Thread[workload.threadCount];
+        for (int t = 0; t < workers.length; t++){
+            workers[t] = new Worker();
+            threads[t] = new Thread(workers[t], "worker-" + t);
+        }
+
+        long start = System.nanoTime();
+        long deadline = (workload.maxExecutionTime > 0)
+                ? start + workload.maxExecutionTime * NANOS_PER_SECOND
+                : Long.MAX_VALUE;
+        for (Thread t: threads){
+            t.start();
+        }
+
+        out.println("[STATUS] elapsed(s) operations ops/sec p50(us) p99(us) p999(us) max(us) disk(bytes)");
+        long operations = 0;
+        long lastReport = start;
+        for (Thread t: threads){
+            while (t.isAlive()){
+                long now = System.nanoTime();
+                if (now >= deadline){
+                    stopped = true;
+                }
+                long nextReport = lastReport + workload.reportInterval * NANOS_PER_SECOND;
+                if (now >= nextReport){
+                    LatencyHistogram interval = new LatencyHistogram();
+                    for (Worker w: workers){
+                        w.interval.drainTo(interval);
+                    }
+                    operations += interval.getCount();
+                    report(now - start, operations, interval, now - lastReport);
+                    lastReport = now;
+                    nextReport = lastReport + workload.reportInterval * NANOS_PER_SECOND;
+                }
+                long wait = Math.min(nextReport, deadline) - now;
+                t.join(Math.max(1, Math.min(wait / 1000000, 1000)));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        summarize(workers, elapsed);
+    }
+
+    /**
+     * Runs operations until there are none left or the run is stopped
+     */
+    private class Worker implements Runnable {
+        final Map<Workload.Operation, LatencyHistogram> histograms =
+                new EnumMap<Workload.Operation, LatencyHistogram>(Workload.Operation.class);
+        final Map<Workload.Operation, AtomicLong> errors =
+                new EnumMap<Workload.Operation, AtomicLong>(Workload.Operation.class);
+        // every operation since the last report, whatever its type
+        final LatencyHistogram interval = new LatencyHistogram();
+        private final Random random = new Random();
+
+        Worker(){
+            for (Workload.Operation o: Workload.Operation.values()){
+                histograms.put(o, new LatencyHistogram());
+                errors.put(o, new AtomicLong());
+            }
+        }
+
+        public void run(){
+            // time between operations for this thread, zero for no throttling
+            long period = (workload.target > 0)
+                    ? (long) (NANOS_PER_SECOND * workload.threadCount / workload.target)
+                    : 0;
+            long intended = System.nanoTime();
+
+            while (!stopped && remaining.getAndDecrement() > 0){
+                long start;
+                if (period > 0){
+                    long now;
+                    while ((now = System.nanoTime()) < intended){
+                        LockSupport.parkNanos(intended - now);
+                    }
+                    start = intended;
+                    intended += period;
+                } else {
+                    start = System.nanoTime();
+                }
+
+                Workload.Operation o = workload.nextOperation(random);
+                try{
+                    perform(o);
+                } catch (IOException e){
+                    errors.get(o).incrementAndGet();
+                }
+                long micros = (System.nanoTime() - start) / 1000;
+                histograms.get(o).record(micros);
+                interval.record(micros);
+            }
+        }
+
+        private void perform(Workload.Operation o) throws IOException {
+            // records inserted during the run can be chosen too
+            long records = inserts.getLimit();
+            switch (o){
+                case READ:
+                    map.get(Workload.key(chooser.next(random, records)));
+                    break;
+                case UPDATE:
+                    map.put(Workload.key(chooser.next(random, records)),
+                            workload.nextValue(random));
+                    break;
+                case INSERT:
+                    long record = inserts.next();
+                    try{
+                        map.put(Workload.key(record), workload.nextValue(random));
+                    } finally {
+                        // even if it failed, or no record after it would
+                        // ever be read; reading it is just a miss
+                        inserts.acknowledge(record);
+                    }
+                    break;
+                case SCAN:
+                    long first = chooser.next(random, records);
+                    for (int i = 0; i < workload.scanLength; i++){
+                        map.get(Workload.key((first + i) % records));
+                    }
+                    break;
+                case READ_MODIFY_WRITE:
+                    String key = Workload.key(chooser.next(random, records));
+                    map.get(key);
+                    map.put(key, workload.nextValue(random));
+                    break;
+            }
+        }
+    }
+
+    private void report(long elapsed, long operations, LatencyHistogram interval,
+            long intervalLength){
+        out.printf("[STATUS] %.0f %d %.1f %d %d %d %d%s%n",
+                elapsed / (double) NANOS_PER_SECOND, operations,
+                interval.getCount() / (intervalLength / (double) NANOS_PER_SECOND),
+                interval.getPercentile(50), interval.getPercentile(99),
+                interval.getPercentile(99.9), interval.getMax(), diskUsage());
+    }
+
+    private void summarize(Worker[] workers, long elapsed){
+        long operations = 0;
+        for (Workload.Operation o: Workload.Operation.values()){
+            LatencyHistogram total = new LatencyHistogram();
+            long errors = 0;
+            for (Worker w: workers){
+                w.histograms.get(o).copyTo(total);
+                errors += w.errors.get(o).get();
+            }
+            if (total.getCount() == 0){
+                continue;
+            }
+            operations += total.getCount();
+            out.printf("[%s] Operations=%d Errors=%d AverageLatency(us)=%.1f"
+                    + " p50(us)=%d p99(us)=%d p999(us)=%d Max(us)=%d%n",
+                    o, total.getCount(), errors, total.getMean(),
+                    total.getPercentile(50), total.getPercentile(99),
+                    total.getPercentile(99.9), total.getMax());
+        }
+        double seconds = elapsed / (double) NANOS_PER_SECOND;
+        out.printf("[OVERALL] Operations=%d RunTime(s)=%.1f Throughput(ops/sec)=%.1f%s%n",
+                operations, seconds, operations / seconds, diskUsage());
+    }
+
+    private String diskUsage(){
+        if (store == null){
+            return "";
+        }
+        return " " + sizeOf(store);
+    }
+
+    /**
+     *
+     * @param f
+     * @return bytes taken by f and everything under it, leaving out
+     * snapshots, which are hard links to entry files that are counted
+     * already (or to old versions of them, which aren't the store's own)
+     */
+    private static long sizeOf(File f){
+        File[] children = f.listFiles();
+        if (children == null){
+            return f.length();
+        }
+        long size = 0;
+        for (File c: children){
+            if (!(c.isDirectory() && SNAPSHOTS.equals(c.getName()))){
+                size += sizeOf(c);
+            }
+        }
+        return size;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Properties p = new Properties();
+        for (int i = 0; i < args.length; i++){
+            if ("-P".equals(args[i]) && i + 1 < args.length){
+                InputStream in = new FileInputStream(args[++i]);
+                try{
+                    p.load(in);
+                } finally {
+                    in.close();
+                }
+            } else if ("-p".equals(args[i]) && i + 1 < args.length){
+                String setting = args[++i];
+                int equals = setting.indexOf('=');
+                if (equals < 0){
+                    usage();
+                    return;
+                }
+                p.setProperty(setting.substring(0, equals), setting.substring(equals + 1));
+            } else {
+                usage();
+                return;
+            }
+        }
+
+        Workload workload = new Workload(p);
+        String store = p.getProperty("store", "workload-store");
+        IOMap<String, byte[]> map = new FileSystemHashMap<String, byte[]>(store,
+                Boolean.parseBoolean(p.getProperty("valueindex", "false")));
+        String kind = p.getProperty("map", "concurrent");
+        if ("concurrent".equals(kind)){
+            map = new ConcurrentHashMap<String, byte[]>(map);
+        } else if (!"filesystem".equals(kind)){
+            throw new IllegalArgumentException("unknown map " + kind);
+        }
+
+        WorkloadDriver driver = new WorkloadDriver(workload, map, new File(store), System.out);
+        if (Boolean.parseBoolean(p.getProperty("load", "true"))){
+            driver.load();
+        }
+        driver.run();
+    }
+
+    private static void usage(){
+        System.err.println("usage: WorkloadDriver [-P workload.properties] [-p name=value]...");
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.pavlos.collections.persistent.workload;
+
+import java.util.Random;
+
+/**
+ *
+ * Picks records following a Zipfian distribution, so that a few records are
+ * very popular and most are rarely touched.  Uses the algorithm from Gray et
+ * al, "Quickly Generating Billion-Record Synthetic Databases", as YCSB does,
+ * and scatters the popular records over the whole range by hashing.
+ *
+ * When the number of records grows, the constants are brought up to date by
+ * adding just the new records' terms, as YCSB's ZipfianGenerator does, so
+ * inserts don't make the chooser start from scratch.
+ *
+ * @author Paul Hieromnimon
+ */
+public class ZipfianKeyChooser implements KeyChooser {
+
+    // the constant YCSB uses, which makes about 20% of records take 80% of
+    // the requests
+    public static final double DEFAULT_CONSTANT = 0.99;
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 1099511628211L;
+
+    private final double theta;
+    private final double alpha;
+    private final double zeta2;
+    // replaced, never changed, when the number of records grows
+    private volatile Constants constants;
+
+    public ZipfianKeyChooser(long records){
+        this(records, DEFAULT_CONSTANT);
+    }
+
+    /**
+     *
+     * @param records number of records to start with
+     * @param constant skew, between 0 (nearly uniform) and 1 (exclusive)
+     */
+    public ZipfianKeyChooser(long records, double constant){
+        if (constant <= 0 || constant >= 1){
+            throw new IllegalArgumentException(
+                    "the Zipfian constant must be between 0 and 1");
+        }
+        this.theta = constant;
+        this.alpha = 1.0 / (1.0 - theta);
+        this.zeta2 = zeta(0, 2, theta, 0);
+        // O(records), but only done once
+        this.constants = new Constants(records, zeta(0, records, theta, 0));
+    }
+
+    public long next(Random random, long records){
+        Constants c = constants;
+        if (c.records < records){
+            c = grow(records);
+        }
+        double u = random.nextDouble();
+        double uz = u * c.zetan;
+        long rank;
+        if (uz < 1.0){
+            rank = 0;
+        } else if (uz < 1.0 + Math.pow(0.5, theta)){
+            rank = 1;
+        } else {
+            rank = (long) (c.records * Math.pow(c.eta * u - c.eta + 1, alpha));
+        }
+        // without this the most popular records would all be next to each
+        // other.  taken modulo records rather than c.records, which another
+        // thread may already have grown past it
+        return Math.abs(fnv(rank) % records);
+    }
+
+    private synchronized Constants grow(long records){
+        Constants c = constants;
+        if (c.records < records){
+            c = new Constants(records, zeta(c.records, records, theta, c.zetan));
+            constants = c;
+        }
+        return c;
+    }
+
+    /**
+     *
+     * @param from number of terms already summed
+     * @param n number of terms wanted
+     * @param theta
+     * @param sum the sum of the first from terms
+     * @return the sum of the first n terms
+     */
+    private static double zeta(long from, long n, double theta, double sum){
+        for (long i = from + 1; i <= n; i++){
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of a long
+     * @param value
+     * @return
+     */
+    private static long fnv(long value){
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < 8; i++){
+            hash ^= value & 0xFF;
+            hash *= FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    /**
+     * What depends on the number of records
+     */
+    private class Constants {
+        final long records;
+        final double zetan;
+        final double eta;
+
+        Constants(long records, double zetan){
+            this.records = records;
+            this.zetan = zetan;
+            this.eta = (1 - Math.pow(2.0 / records, 1 - theta))
+                    / (1 - zeta2 / zetan);
+        }
+    }
+}
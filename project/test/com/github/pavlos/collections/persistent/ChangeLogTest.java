@@ -0,0 +1,347 @@
+package com.github.pavlos.collections.persistent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Paul Hieromnimon
+ */
+public class ChangeLogTest {
+
+    private File dir;
+    private String logDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFiles.createDirectory();
+        logDirectory = new File(dir, "log").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    private static List<Long> sequences(List<ChangeEvent<String,String>> events){
+        List<Long> sequences = new ArrayList<Long>();
+        for (ChangeEvent<String,String> e: events){
+            sequences.add(e.getSequence());
+        }
+        return sequences;
+    }
+
+    private static List<Long> range(long first, long last){
+        List<Long> range = new ArrayList<Long>();
+        for (long s = first; s <= last; s++){
+            range.add(s);
+        }
+        return range;
+    }
+
+    @Test
+    public void testCursorReadsInBatchesAcrossSegments() throws Exception {
+        ChangeLog<String,String> log = new ChangeLog<String,String>(logDirectory, 3, 0, false);
+        for (int i = 1; i <= 7; i++){
+            assertEquals(i, log.append(ChangeEvent.Type.PUT, "k" + i, "v" + i).getSequence());
+        }
+        ChangeLog<String,String>.Cursor cursor = log.changesSince(0);
+        assertEquals(range(1, 4), sequences(cursor.next(4)));
+        assertEquals(range(5, 7), sequences(cursor.next(4)));
+        assertTrue(cursor.next(4).isEmpty());
+
+        // events appended later are picked up by the same cursor
+        log.append(ChangeEvent.Type.REMOVE, "k1", null);
+        List<ChangeEvent<String,String>> batch = cursor.next(4);
+        assertEquals(range(8, 8), sequences(batch));
+        assertEquals(ChangeEvent.Type.REMOVE, batch.get(0).getType());
+        assertEquals("k1", batch.get(0).getKey());
+        assertEquals(8, cursor.getSequence());
+        cursor.close();
+
+        cursor = log.changesSince(5);
+        assertEquals(range(6, 8), sequences(cursor.next(10)));
+        cursor.close();
+        log.close();
+    }
+
+    @Test
+    public void testTornTailIsCutOffOnOpen() throws Exception {
+        ChangeLog<String,String> log = new ChangeLog<String,String>(logDirectory, 10, 0, false);
+        for (int i = 1; i <= 3; i++){
+            log.append(ChangeEvent.Type.PUT, "k" + i, "v" + i);
+        }
+        log.close();
+
+        File segment = new File(logDirectory, String.format("%019d", 1) + ".log");
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try{
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+
+        log = new ChangeLog<String,String>(logDirectory, 10, 0, false);
+        assertEquals(2, log.getLastSequence());
+        assertEquals(3, log.append(ChangeEvent.Type.PUT, "k3", "again").getSequence());
+        List<ChangeEvent<String,String>> events = log.changesSince(0).next(10);
+        assertEquals(range(1, 3), sequences(events));
+        assertEquals("again", events.get(2).getValue());
+        log.close();
+    }
+
+    @Test
+    public void testRetentionDeletesOldestSegments() throws Exception {
+        ChangeLog<String,String> log = new ChangeLog<String,String>(logDirectory, 2, 2, false);
+        for (int i = 1; i <= 8; i++){
+            log.append(ChangeEvent.Type.PUT, "k" + i, "v" + i);
+        }
+        assertEquals(5, log.getFirstSequence());
+        assertEquals(range(5, 8), sequences(log.changesSince(0).next(10)));
+        assertEquals(range(5, 8), sequences(log.changesSince(4).next(10)));
+        try{
+            log.changesSince(3);
+            fail("events 4 and 5 are gone");
+        } catch (FellBehindException e){
+        }
+        log.close();
+    }
+
+    @Test
+    public void testLaggingCursorFallsBehindRetention() throws Exception {
+        ChangeLog<String,String> log = new ChangeLog<String,String>(logDirectory, 2, 2, false);
+        log.append(ChangeEvent.Type.PUT, "k1", "v1");
+        log.append(ChangeEvent.Type.PUT, "k2", "v2");
+        ChangeLog<String,String>.Cursor cursor = log.changesSince(0);
+        assertEquals(range(1, 1), sequences(cursor.next(1)));
+
+        // the segment the cursor is reading stays open, but the one after it
+        // is deleted
+        for (int i = 3; i <= 8; i++){
+            log.append(ChangeEvent.Type.PUT, "k" + i, "v" + i);
+        }
+        assertEquals(range(2, 2), sequences(cursor.next(1)));
+        try{
+            cursor.next(10);
+            fail("events 3 and 4 are gone");
+        } catch (FellBehindException e){
+        }
+        assertEquals(2, cursor.getSequence());
+        cursor.close();
+        log.close();
+    }
+
+    @Test
+    public void testUncleanShutdownKeepsEvents() throws Exception {
+        ChangeLog<String,String> log = new ChangeLog<String,String>(logDirectory, 2, 0, false);
+        for (int i = 1; i <= 3; i++){
+            log.append(ChangeEvent.Type.PUT, "k" + i, "v" + i);
+        }
+        assertTrue(log.wasClosedCleanly());
+        // the process dies without closing the log
+        log = new ChangeLog<String,String>(logDirectory, 2, 0, false);
+        assertFalse(log.wasClosedCleanly());
+        assertEquals(1, log.getFirstSequence());
+        assertEquals(range(3, 4), sequences(append(log, log.changesSince(2), 4)));
+        log.close();
+
+        log = new ChangeLog<String,String>(logDirectory, 2, 0, false);
+        assertTrue(log.wasClosedCleanly());
+        log.close();
+    }
+
+    private static List<ChangeEvent<String,String>> append(ChangeLog<String,String> log,
+            ChangeLog<String,String>.Cursor cursor, int sequence) throws IOException {
+        assertEquals(sequence, log.append(ChangeEvent.Type.PUT, "k" + sequence, "v").getSequence());
+        List<ChangeEvent<String,String>> events = cursor.next(10);
+        cursor.close();
+        return events;
+    }
+
+    @Test
+    public void testSkippedSequenceMakesCursorsFallBehind() throws Exception {
+        ChangeLog<String,String> log = new ChangeLog<String,String>(logDirectory, 10, 0, false);
+        log.append(ChangeEvent.Type.PUT, "k1", "v1");
+        log.append(ChangeEvent.Type.PUT, "k2", "v2");
+        log.skipSequence();
+        assertEquals(4, log.append(ChangeEvent.Type.PUT, "k4", "v4").getSequence());
+
+        ChangeLog<String,String>.Cursor cursor = log.changesSince(0);
+        // what came before the gap is handed out first
+        assertEquals(range(1, 2), sequences(cursor.next(10)));
+        try{
+            cursor.next(10);
+            fail("event 3 is missing");
+        } catch (FellBehindException e){
+        }
+        assertEquals(2, cursor.getSequence());
+        cursor.close();
+        log.close();
+    }
+
+    @Test
+    public void testChangeLoggingHashMapLogsChanges() throws Exception {
+        FileSystemHashMap<String,String> disk =
+                new FileSystemHashMap<String,String>(new File(dir, "store").getPath());
+        ChangeLoggingHashMap<String,String> map =
+                new ChangeLoggingHashMap<String,String>(disk, logDirectory);
+        map.put("a", "1");
+        map.put("a", "2");
+        map.remove("b");
+        map.remove("a");
+        map.put("c", "3");
+        map.clear();
+
+        List<ChangeEvent<String,String>> events = map.changesSince(0).next(10);
+        assertEquals(range(1, 5), sequences(events));
+        assertEquals(ChangeEvent.Type.PUT, events.get(1).getType());
+        assertEquals("2", events.get(1).getValue());
+        assertEquals(ChangeEvent.Type.REMOVE, events.get(2).getType());
+        assertEquals("a", events.get(2).getKey());
+        assertEquals(ChangeEvent.Type.CLEAR, events.get(4).getType());
+        map.close();
+    }
+
+    /**
+     * Applies events to a copy of the map, as a consumer would
+     * @param replica
+     * @param events
+     */
+    private static void apply(Map<String,String> replica,
+            List<ChangeEvent<String,String>> events){
+        for (ChangeEvent<String,String> e: events){
+            switch (e.getType()){
+                case PUT:
+                    replica.put(e.getKey(), e.getValue());
+                    break;
+                case REMOVE:
+                    replica.remove(e.getKey());
+                    break;
+                case CLEAR:
+                    replica.clear();
+                    break;
+            }
+        }
+    }
+
+    private static Map<String,String> contents(IOMap<String,String> map) throws IOException {
+        Map<String,String> contents = new HashMap<String,String>();
+        for (Entry<String,String> e: map.entrySet()){
+            contents.put(e.getKey(), e.getValue());
+        }
+        return contents;
+    }
+
+    @Test
+    public void testClosedMapRefusesChanges() throws Exception {
+        FileSystemHashMap<String,String> disk =
+                new FileSystemHashMap<String,String>(new File(dir, "store").getPath());
+        ChangeLoggingHashMap<String,String> map =
+                new ChangeLoggingHashMap<String,String>(disk, logDirectory);
+        map.put("a", "1");
+        map.close();
+        try{
+            map.put("b", "2");
+            fail("the log is closed");
+        } catch (IOException e){
+        }
+        try{
+            map.remove("a");
+            fail("the log is closed");
+        } catch (IOException e){
+        }
+        assertEquals(Collections.singletonMap("a", "1"), contents(disk));
+    }
+
+    @Test
+    public void testFailedChangeIsCorrectedInLog() throws Exception {
+        FileSystemHashMap<String,String> disk =
+                new FileSystemHashMap<String,String>(new File(dir, "store").getPath()){
+            public String put(String key, String value) throws IOException {
+                if ("bad".equals(value)){
+                    throw new IOException("disk full");
+                }
+                return super.put(key, value);
+            }
+        };
+        ChangeLoggingHashMap<String,String> map =
+                new ChangeLoggingHashMap<String,String>(disk, logDirectory);
+        map.put("a", "1");
+        try{
+            map.put("a", "bad");
+            fail("the map refuses it");
+        } catch (IOException e){
+        }
+        try{
+            map.put("b", "bad");
+            fail("the map refuses it");
+        } catch (IOException e){
+        }
+
+        Map<String,String> replica = new HashMap<String,String>();
+        apply(replica, map.changesSince(0).next(100));
+        assertEquals(contents(disk), replica);
+        map.close();
+    }
+
+    @Test
+    public void testRecoveryReconcilesChangesNeverMade() throws Exception {
+        FileSystemHashMap<String,String> disk =
+                new FileSystemHashMap<String,String>(new File(dir, "store").getPath());
+        ChangeLoggingHashMap<String,String> map =
+                new ChangeLoggingHashMap<String,String>(disk, logDirectory);
+        map.put("a", "1");
+        map.put("b", "2");
+        map.put("c", "3");
+        Map<String,String> replica = new HashMap<String,String>();
+        apply(replica, map.changesSince(0).next(100));
+
+        // the process dies after logging these, before making them
+        ChangeLog<String,String> log = map.getChangeLog();
+        log.append(ChangeEvent.Type.PUT, "a", "10");
+        log.append(ChangeEvent.Type.REMOVE, "b", null);
+        log.append(ChangeEvent.Type.PUT, "d", "4");
+
+        map = new ChangeLoggingHashMap<String,String>(disk, logDirectory);
+        List<ChangeEvent<String,String>> events = map.changesSince(3).next(100);
+        // the three above, and one to put each key right
+        assertEquals(range(4, 9), sequences(events));
+        apply(replica, events);
+        assertEquals(contents(disk), replica);
+        map.close();
+
+        // nothing more to do once closed cleanly
+        map = new ChangeLoggingHashMap<String,String>(disk, logDirectory);
+        assertEquals(9, map.getChangeLog().getLastSequence());
+        map.close();
+    }
+
+    @Test
+    public void testRecoveryReconcilesUnfinishedClear() throws Exception {
+        FileSystemHashMap<String,String> disk =
+                new FileSystemHashMap<String,String>(new File(dir, "store").getPath());
+        ChangeLoggingHashMap<String,String> map =
+                new ChangeLoggingHashMap<String,String>(disk, logDirectory);
+        map.put("a", "1");
+        map.put("b", "2");
+        map.getChangeLog().append(ChangeEvent.Type.CLEAR, null, null);
+        disk.remove("a");
+
+        map = new ChangeLoggingHashMap<String,String>(disk, logDirectory);
+        Map<String,String> replica = new HashMap<String,String>();
+        apply(replica, map.changesSince(0).next(100));
+        assertEquals(Collections.singletonMap("b", "2"), replica);
+        map.close();
+    }
+}
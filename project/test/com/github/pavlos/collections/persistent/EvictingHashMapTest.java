@@ -0,0 +1,309 @@
+package com.github.pavlos.collections.persistent;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Paul Hieromnimon
+ */
+public class EvictingHashMapTest {
+
+    private File dir;
+    private String store;
+    private String metadataStore;
+    private FileSystemHashMap<String,String> disk;
+    private final List<String> removed = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFiles.createDirectory();
+        store = new File(dir, "store").getPath();
+        metadataStore = new File(dir, "metadata").getPath();
+        disk = new FileSystemHashMap<String,String>(store);
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    private EvictingHashMap<String,String> open(long maxEntries, long maxBytes,
+            long sweepInterval) throws Exception {
+        EvictingHashMap<String,String> map = new EvictingHashMap<String,String>(
+                disk, metadataStore, maxEntries, maxBytes, 0, sweepInterval,
+                TimeUnit.MILLISECONDS);
+        map.addEvictionListener(new EvictingHashMap.EvictionListener<String,String>(){
+            public void onEviction(String key, String value,
+                    EvictingHashMap.RemovalCause cause){
+                synchronized (removed){
+                    removed.add(key + "=" + value + " " + cause);
+                }
+            }
+        });
+        return map;
+    }
+
+    @Test
+    public void testClockGivesReferencedEntriesASecondChance() throws Exception {
+        EvictingHashMap<String,String> map = open(3, 0, 0);
+        map.put("a", "1");
+        map.put("b", "2");
+        map.put("c", "3");
+        // every entry starts referenced, so the first full turn of the clock
+        // clears them all and takes the oldest
+        map.put("d", "4");
+        assertFalse(map.containsKey("a"));
+        assertFalse(disk.containsKey("a"));
+
+        map.get("b");
+        map.put("e", "5");
+        assertTrue(map.containsKey("b"));
+        assertFalse(map.containsKey("c"));
+        assertEquals(3, map.size());
+        assertEquals(3, disk.size());
+        assertEquals("[a=1 SIZE, c=3 SIZE]", removed.toString());
+        assertEquals(2, map.getStats().getEvictionCount());
+    }
+
+    @Test
+    public void testByteLimit() throws Exception {
+        EvictingHashMap<String,String> map = open(0, 0, 0);
+        map.put("a", "1");
+        long weight = map.getStats().getByteCount();
+        map.clear();
+
+        map = open(0, weight * 3, 0);
+        for (int i = 0; i < 10; i++){
+            // same sized key and value as above
+            map.put(String.valueOf((char) ('a' + i)), String.valueOf(i));
+            assertTrue(map.getStats().getByteCount() <= weight * 3);
+        }
+        assertEquals(3, map.size());
+        assertEquals(3, disk.size());
+    }
+
+    @Test
+    public void testFailingListenerDoesNotStopEviction() throws Exception {
+        final List<Throwable> reported = new ArrayList<Throwable>();
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler(){
+            public void uncaughtException(Thread t, Throwable e){
+                synchronized (reported){
+                    reported.add(e);
+                }
+            }
+        });
+        try{
+            EvictingHashMap<String,String> map = open(0, 0, 0);
+            map.put("a", "1");
+            long weight = map.getStats().getByteCount();
+            map.clear();
+
+            map = open(0, weight * 10, 0);
+            map.addEvictionListener(new EvictingHashMap.EvictionListener<String,String>(){
+                public void onEviction(String key, String value,
+                        EvictingHashMap.RemovalCause cause){
+                    throw new IllegalStateException(key);
+                }
+            });
+            for (int i = 0; i < 10; i++){
+                map.put(String.valueOf((char) ('a' + i)), String.valueOf(i));
+            }
+            // one big entry pushes all ten out at once
+            StringBuilder big = new StringBuilder();
+            for (int i = 0; i < weight * 8; i++){
+                big.append('x');
+            }
+            map.put("z", big.toString());
+            assertTrue(map.containsKey("z"));
+            assertTrue(removed.size() > 1);
+            assertEquals(11 - removed.size(), map.size());
+            assertEquals(map.size(), disk.size());
+            assertEquals(removed.size(), reported.size());
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        EvictingHashMap<String,String> map = open(0, 0, 0);
+        map.put("a", "1");
+        assertEquals("1", map.get("a"));
+        assertNull(map.get("b"));
+        assertEquals(1, map.getStats().getHitCount());
+        assertEquals(1, map.getStats().getMissCount());
+    }
+
+    @Test
+    public void testExpiredEntryIsRemovedWhenRead() throws Exception {
+        EvictingHashMap<String,String> map = open(0, 0, 0);
+        map.put("a", "1", 50, TimeUnit.MILLISECONDS);
+        map.put("b", "2");
+        Thread.sleep(100);
+
+        assertFalse(map.containsKey("a"));
+        assertNull(map.get("a"));
+        assertFalse(disk.containsKey("a"));
+        assertEquals("2", map.get("b"));
+        assertEquals("[a=1 EXPIRED]", removed.toString());
+        assertEquals(1, map.getStats().getExpirationCount());
+    }
+
+    @Test
+    public void testSweeperRemovesExpiredEntries() throws Exception {
+        EvictingHashMap<String,String> map = open(0, 0, 20);
+        try{
+            map.put("a", "1", 30, TimeUnit.MILLISECONDS);
+            map.put("b", "2");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (disk.containsKey("a") && System.currentTimeMillis() < deadline){
+                Thread.sleep(20);
+            }
+            assertFalse(disk.containsKey("a"));
+            assertTrue(disk.containsKey("b"));
+            assertEquals(1, map.size());
+        } finally {
+            map.shutdown();
+        }
+    }
+
+    @Test
+    public void testSweeperSurvivesFailingListener() throws Exception {
+        final List<Throwable> reported = new ArrayList<Throwable>();
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler(){
+            public void uncaughtException(Thread t, Throwable e){
+                synchronized (reported){
+                    reported.add(e);
+                }
+            }
+        });
+        EvictingHashMap<String,String> map = open(0, 0, 20);
+        try{
+            map.addEvictionListener(new EvictingHashMap.EvictionListener<String,String>(){
+                public void onEviction(String key, String value,
+                        EvictingHashMap.RemovalCause cause){
+                    throw new IllegalStateException(key);
+                }
+            });
+            map.put("a", "1", 30, TimeUnit.MILLISECONDS);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (disk.containsKey("a") && System.currentTimeMillis() < deadline){
+                Thread.sleep(20);
+            }
+            assertFalse(disk.containsKey("a"));
+
+            // still sweeping
+            map.put("b", "2", 30, TimeUnit.MILLISECONDS);
+            deadline = System.currentTimeMillis() + 5000;
+            while (reportCount(reported) < 2 && System.currentTimeMillis() < deadline){
+                Thread.sleep(20);
+            }
+            assertFalse(disk.containsKey("b"));
+            assertEquals(2, reportCount(reported));
+        } finally {
+            map.shutdown();
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+
+    private static int reportCount(List<Throwable> reported){
+        synchronized (reported){
+            return reported.size();
+        }
+    }
+
+    @Test
+    public void testReopenDropsMetadataOfMissingEntries() throws Exception {
+        EvictingHashMap<String,String> map = open(0, 0, 0);
+        map.put("a", "1");
+        map.put("b", "2");
+        long bytes = map.getStats().getByteCount();
+        // as if the process had died between writing the metadata and the entry
+        disk.remove("a");
+
+        map = open(0, 0, 0);
+        assertEquals(1, map.size());
+        assertEquals(bytes / 2, map.getStats().getByteCount());
+        FileSystemHashMap<String,Serializable> metadata =
+                new FileSystemHashMap<String,Serializable>(metadataStore);
+        assertFalse(metadata.containsKey("a"));
+        assertTrue(metadata.containsKey("b"));
+    }
+
+    @Test
+    public void testExpiryAndSizeSurviveReopen() throws Exception {
+        EvictingHashMap<String,String> map = open(0, 0, 0);
+        map.put("a", "1", 300, TimeUnit.MILLISECONDS);
+        map.put("b", "2");
+        long bytes = map.getStats().getByteCount();
+
+        map = open(0, 0, 0);
+        assertEquals(2, map.size());
+        assertEquals(bytes, map.getStats().getByteCount());
+        assertTrue(map.containsKey("a"));
+
+        Thread.sleep(400);
+        assertFalse(map.containsKey("a"));
+        map.expireEntries();
+        assertFalse(disk.containsKey("a"));
+        assertTrue(disk.containsKey("b"));
+    }
+
+    @Test
+    public void testOpeningEnforcesLimits() throws Exception {
+        for (int i = 0; i < 5; i++){
+            disk.put("k" + i, String.valueOf(i));
+        }
+        EvictingHashMap<String,String> map = open(2, 0, 0);
+        assertEquals(2, map.size());
+        assertEquals(2, disk.size());
+    }
+
+    @Test
+    public void testConcurrentUseStaysWithinLimit() throws Exception {
+        final EvictingHashMap<String,String> map = open(20, 0, 0);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++){
+            final int seed = t;
+            threads[t] = new Thread(){
+                public void run(){
+                    try{
+                        for (int i = 0; i < 200; i++){
+                            String key = "k" + ((i * 7 + seed) % 50);
+                            if (i % 3 == 0){
+                                map.put(key, key);
+                            } else {
+                                String value = map.get(key);
+                                if (value != null && !value.equals(key)){
+                                    throw new AssertionError(key + "=" + value);
+                                }
+                            }
+                        }
+                    } catch (Throwable e){
+                        synchronized (failures){
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t: threads){
+            t.join();
+        }
+        assertEquals("[]", failures.toString());
+        assertTrue(map.size() <= 20);
+        assertEquals(map.size(), disk.size());
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.pavlos.collections.persistent;
+
+import java.io.File;
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Paul Hieromnimon
+ */
+public class FileSystemHashMapTest {
+
+    private File dir;
+    private String store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFiles.createDirectory();
+        store = dir.getPath();
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    @Test
+    public void testValueIndexFollowsPutAndRemove() throws Exception {
+        FileSystemHashMap<String,String> map = new FileSystemHashMap<String,String>(store, true);
+        assertTrue(map.isValueIndexed());
+        map.put("a", "x");
+        map.put("b", "x");
+        map.put("c", "y");
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), map.keysForValue("x"));
+        assertTrue(map.containsValue("y"));
+        assertFalse(map.containsValue("z"));
+
+        map.put("a", "y");
+        map.remove("b");
+        assertEquals(Collections.emptySet(), map.keysForValue("x"));
+        assertFalse(map.containsValue("x"));
+        assertEquals(new HashSet<String>(Arrays.asList("a", "c")), map.keysForValue("y"));
+
+        map.clear();
+        assertFalse(map.containsValue("y"));
+    }
+
+    @Test
+    public void testValueIndexSurvivesReopen() throws Exception {
+        FileSystemHashMap<String,String> map = new FileSystemHashMap<String,String>(store, true);
+        map.put("a", "x");
+        map.put("b", "y");
+
+        map = new FileSystemHashMap<String,String>(store, true);
+        assertEquals(Collections.singleton("a"), map.keysForValue("x"));
+        assertEquals(Collections.singleton("b"), map.keysForValue("y"));
+    }
+
+    @Test
+    public void testValueIndexBuiltForExistingStore() throws Exception {
+        FileSystemHashMap<String,String> plain = new FileSystemHashMap<String,String>(store);
+        plain.put("a", "x");
+        plain.put("b", "x");
+        assertFalse(plain.isValueIndexed());
+
+        FileSystemHashMap<String,String> map = new FileSystemHashMap<String,String>(store, true);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), map.keysForValue("x"));
+    }
+
+    @Test
+    public void testUnindexedOpenDiscardsStaleIndex() throws Exception {
+        FileSystemHashMap<String,String> map = new FileSystemHashMap<String,String>(store, true);
+        map.put("a", "x");
+
+        FileSystemHashMap<String,String> plain = new FileSystemHashMap<String,String>(store);
+        plain.put("b", "x");
+        assertFalse(new File(dir, "index").exists());
+
+        map = new FileSystemHashMap<String,String>(store, true);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), map.keysForValue("x"));
+    }
+
+    @Test
+    public void testRebuildDuringWritesMissesNothing() throws Exception {
+        final FileSystemHashMap<Integer,String> map = new FileSystemHashMap<Integer,String>(store, true);
+        final int count = 100;
+        Thread writer = new Thread(){
+            public void run(){
+                try{
+                    for (int i = 0; i < count; i++){
+                        map.put(i, "v" + (i % 10));
+                    }
+                } catch (Exception e){
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        while (writer.isAlive()){
+            map.rebuildValueIndex();
+        }
+        writer.join();
+
+        for (int v = 0; v < 10; v++){
+            Set<Integer> expected = new HashSet<Integer>();
+            for (int i = v; i < count; i += 10){
+                expected.add(i);
+            }
+            assertEquals(expected, map.keysForValue("v" + v));
+        }
+    }
+
+    @Test
+    public void testFailedWriteLeavesNothingInTmp() throws Exception {
+        FileSystemHashMap<String,ArrayList<Object>> map =
+                new FileSystemHashMap<String,ArrayList<Object>>(store);
+        ArrayList<Object> value = new ArrayList<Object>();
+        value.add(new Object());
+        try{
+            map.put("a", value);
+            fail("an Object can't be serialized");
+        } catch (NotSerializableException e){
+        }
+        File tmp = new File(store, "tmp");
+        assertEquals(0, tmp.list().length);
+        assertFalse(map.containsKey("a"));
+
+        // as if the process had died part way through a write
+        new File(tmp, "entry123.tmp").createNewFile();
+        new FileSystemHashMap<String,ArrayList<Object>>(store);
+        assertEquals(0, tmp.list().length);
+    }
+}
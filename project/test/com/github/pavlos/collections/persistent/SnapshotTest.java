@@ -0,0 +1,232 @@
+package com.github.pavlos.collections.persistent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Paul Hieromnimon
+ */
+public class SnapshotTest {
+
+    private File dir;
+    private String store;
+    private FileSystemHashMap<Integer,Integer> map;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = TestFiles.createDirectory();
+        store = new File(dir, "store").getPath();
+        map = new FileSystemHashMap<Integer,Integer>(store);
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    @Test
+    public void testSnapshotIsUnaffectedByLaterChanges() throws Exception {
+        map.put(1, 1);
+        map.put(2, 2);
+        Snapshot<Integer,Integer> snapshot = map.snapshot();
+        map.put(1, 10);
+        map.remove(2);
+        map.put(3, 3);
+
+        IOMap<Integer,Integer> view = snapshot.getMap();
+        assertEquals(2, view.size());
+        assertEquals(Integer.valueOf(1), view.get(1));
+        assertEquals(Integer.valueOf(2), view.get(2));
+        assertNull(view.get(3));
+        assertEquals(Integer.valueOf(10), map.get(1));
+    }
+
+    /**
+     * A writer sets keys 0..n-1 to 1, then all of them to 2, and so on, one
+     * key at a time.  Any consistent copy taken meanwhile holds some number
+     * g+1 for a first run of keys and g for the rest.
+     */
+    @Test
+    public void testSnapshotIsConsistentUnderConcurrentWriter() throws Exception {
+        final int keys = 200;
+        final int generations = 15;
+        for (int k = 0; k < keys; k++){
+            map.put(k, 0);
+        }
+        final ConcurrentHashMap<Integer,Integer> shared = new ConcurrentHashMap<Integer,Integer>(map);
+        Thread writer = new Thread(){
+            public void run(){
+                try{
+                    for (int g = 1; g <= generations; g++){
+                        for (int k = 0; k < keys; k++){
+                            shared.put(k, g);
+                        }
+                    }
+                } catch (Exception e){
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        int snapshots = 0;
+        while (writer.isAlive() || snapshots == 0){
+            Snapshot<Integer,Integer> snapshot = map.snapshot();
+            IOMap<Integer,Integer> view = snapshot.getMap();
+            assertEquals(keys, view.size());
+            int first = view.get(0);
+            boolean dropped = false;
+            for (int k = 1; k < keys; k++){
+                int value = view.get(k);
+                if (value == first - 1){
+                    dropped = true;
+                } else {
+                    assertEquals("key " + k, first, value);
+                    assertFalse("key " + k + " went back up", dropped);
+                }
+            }
+            snapshot.delete();
+            snapshots++;
+        }
+        writer.join();
+        assertTrue(map.snapshots().isEmpty());
+    }
+
+    @Test
+    public void testSnapshotWaitsForClear() throws Exception {
+        final int keys = 1000;
+        for (int k = 0; k < keys; k++){
+            map.put(k, k);
+        }
+        final ConcurrentHashMap<Integer,Integer> shared = new ConcurrentHashMap<Integer,Integer>(map);
+        Thread clearer = new Thread(){
+            public void run(){
+                shared.clear();
+            }
+        };
+        clearer.start();
+        while (map.size() == keys){
+            Thread.yield();
+        }
+        // the clear has started, so the snapshot must come after all of it
+        Snapshot<Integer,Integer> snapshot = map.snapshot();
+        clearer.join();
+        assertEquals(0, snapshot.getMap().size());
+    }
+
+    @Test
+    public void testSnapshotWaitsForPutAll() throws Exception {
+        final int keys = 1000;
+        final Map<Integer,Integer> m = new HashMap<Integer,Integer>();
+        for (int k = 0; k < keys; k++){
+            m.put(k, k);
+        }
+        final ConcurrentHashMap<Integer,Integer> shared = new ConcurrentHashMap<Integer,Integer>(map);
+        Thread writer = new Thread(){
+            public void run(){
+                try{
+                    shared.putAll(m);
+                } catch (IOException e){
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        while (map.size() == 0){
+            Thread.yield();
+        }
+        Snapshot<Integer,Integer> snapshot = map.snapshot();
+        writer.join();
+        assertEquals(keys, snapshot.getMap().size());
+    }
+
+    @Test(expected=UnsupportedOperationException.class)
+    public void testSnapshotViewIsReadOnly() throws Exception {
+        map.put(1, 1);
+        map.snapshot().getMap().put(2, 2);
+    }
+
+    @Test
+    public void testInterruptedBackupCanBeRetried() throws Exception {
+        map.put(1, 1);
+        Snapshot<Integer,Integer> snapshot = map.snapshot();
+        File destination = new File(dir, "backup");
+        // what a crash part way through a backup leaves behind
+        File partial = new File(dir, "backup.tmp");
+        new File(partial, "data").mkdirs();
+        new File(partial, "data" + File.separator + "junk").createNewFile();
+
+        snapshot.backupTo(destination, null);
+        assertFalse(partial.exists());
+        // an Integer's file is named after its hash code, which is itself
+        assertEquals(Arrays.asList("1"),
+                Arrays.asList(new File(destination, "data").list()));
+        try{
+            snapshot.backupTo(destination, null);
+            fail("the backup is already there");
+        } catch (IOException e){
+        }
+    }
+
+    @Test
+    public void testIncrementalBackupCopiesOnlyChanges() throws Exception {
+        for (int k = 0; k < 10; k++){
+            map.put(k, k);
+        }
+        Snapshot<Integer,Integer> first = map.snapshot();
+        map.put(3, 30);
+        map.remove(4);
+        map.put(20, 20);
+        Snapshot<Integer,Integer> second = map.snapshot();
+        assertEquals(Arrays.asList(first.getDirectory(), second.getDirectory()),
+                Arrays.asList(map.snapshots().get(0).getDirectory(),
+                        map.snapshots().get(1).getDirectory()));
+
+        File full = new File(dir, "full");
+        first.backupTo(full, null);
+        assertEquals(10, new File(full, "data").list().length);
+        assertFalse(new File(full, "deleted").exists());
+
+        File incremental = new File(dir, "incremental");
+        second.backupTo(incremental, first);
+        assertEquals(new HashSet<String>(Arrays.asList("3", "20")),
+                new HashSet<String>(Arrays.asList(new File(incremental, "data").list())));
+        assertEquals(Arrays.asList("4"),
+                Files.readAllLines(new File(incremental, "deleted").toPath()));
+
+        // restore: the full backup, then the incremental one on top
+        File restored = new File(full, "data");
+        for (File f: new File(incremental, "data").listFiles()){
+            Files.copy(f.toPath(), new File(restored, f.getName()).toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        }
+        for (String name: Files.readAllLines(new File(incremental, "deleted").toPath())){
+            new File(restored, name).delete();
+        }
+        FileSystemHashMap<Integer,Integer> copy = new FileSystemHashMap<Integer,Integer>(full.getPath());
+        assertEquals(new HashSet<Entry<Integer,Integer>>(map.entrySet()),
+                new HashSet<Entry<Integer,Integer>>(copy.entrySet()));
+    }
+
+    @Test
+    public void testIncompleteSnapshotIsDiscardedOnOpen() throws Exception {
+        map.put(1, 1);
+        map.snapshot();
+        File broken = new File(new File(store, "snapshots"), "0000000000000000001");
+        new File(broken, "data").mkdirs();
+
+        map = new FileSystemHashMap<Integer,Integer>(store);
+        assertFalse(broken.exists());
+        assertEquals(1, map.snapshots().size());
+    }
+}
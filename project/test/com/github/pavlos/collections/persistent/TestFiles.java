@@ -0,0 +1,31 @@
+package com.github.pavlos.collections.persistent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ *
+ * Scratch directories for tests
+ *
+ * @author Paul Hieromnimon
+ */
+class TestFiles {
+
+    private TestFiles(){
+    }
+
+    static File createDirectory() throws IOException{
+        return Files.createTempDirectory("persistent-collections").toFile();
+    }
+
+    static void delete(File f){
+        File[] children = f.listFiles();
+        if (children != null){
+            for (File c: children){
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.pavlos.collections.persistent.workload;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Paul Hieromnimon
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketEdges() {
+        assertEquals(0, LatencyHistogram.bucketFor(0));
+        assertEquals(1023, LatencyHistogram.bucketFor(1023));
+        // two values per bucket from 1024 to 2047, four from 2048, ...
+        assertEquals(1024, LatencyHistogram.bucketFor(1024));
+        assertEquals(1024, LatencyHistogram.bucketFor(1025));
+        assertEquals(1025, LatencyHistogram.bucketFor(1026));
+        assertEquals(1535, LatencyHistogram.bucketFor(2047));
+        assertEquals(1536, LatencyHistogram.bucketFor(2048));
+        assertEquals(1536, LatencyHistogram.bucketFor(2051));
+        assertEquals(1537, LatencyHistogram.bucketFor(2052));
+        assertEquals(LatencyHistogram.BUCKETS - 1,
+                LatencyHistogram.bucketFor(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE,
+                LatencyHistogram.highestValueIn(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void testBucketsAreContiguousAndNarrow() {
+        for (int b = 0; b < LatencyHistogram.BUCKETS - 1; b++){
+            long highest = LatencyHistogram.highestValueIn(b);
+            assertEquals(b, LatencyHistogram.bucketFor(highest));
+            assertEquals(b + 1, LatencyHistogram.bucketFor(highest + 1));
+            long lowest = (b == 0) ? 0 : LatencyHistogram.highestValueIn(b - 1) + 1;
+            assertTrue("bucket " + b, highest - lowest <= lowest / 500);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentile(50));
+        for (int micros = 1; micros <= 100; micros++){
+            h.record(micros);
+        }
+        assertEquals(1, h.getPercentile(0));
+        assertEquals(1, h.getPercentile(1));
+        assertEquals(50, h.getPercentile(50));
+        assertEquals(51, h.getPercentile(50.5));
+        assertEquals(99, h.getPercentile(99));
+        assertEquals(100, h.getPercentile(100));
+        assertEquals(50.5, h.getMean(), 0.0001);
+    }
+
+    @Test
+    public void testPercentileIsTopOfBucketButNotAboveMax() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(2048);
+        h.record(2049);
+        // both in the bucket that goes up to 2051
+        assertEquals(2049, h.getPercentile(50));
+        h.record(3000);
+        assertEquals(2051, h.getPercentile(50));
+        assertEquals(3000, h.getPercentile(100));
+    }
+
+    @Test
+    public void testDrainToMovesEverything() {
+        LatencyHistogram from = new LatencyHistogram();
+        LatencyHistogram to = new LatencyHistogram();
+        from.record(10);
+        from.record(5000);
+        to.record(20);
+        from.drainTo(to);
+        assertEquals(0, from.getCount());
+        assertEquals(0, from.getMax());
+        assertEquals(3, to.getCount());
+        assertEquals(5000, to.getMax());
+        assertEquals(20, to.getPercentile(50));
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.pavlos.collections.persistent.workload;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Paul Hieromnimon
+ */
+public class WorkloadTest {
+
+    private static final int DRAWS = 100000;
+
+    private static Map<Workload.Operation, Integer> draw(Workload workload){
+        Map<Workload.Operation, Integer> counts =
+                new EnumMap<Workload.Operation, Integer>(Workload.Operation.class);
+        for (Workload.Operation o: Workload.Operation.values()){
+            counts.put(o, 0);
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < DRAWS; i++){
+            Workload.Operation o = workload.nextOperation(random);
+            counts.put(o, counts.get(o) + 1);
+        }
+        return counts;
+    }
+
+    @Test
+    public void testOperationProportions() {
+        Properties p = new Properties();
+        p.setProperty("readproportion", "0.5");
+        p.setProperty("updateproportion", "0.3");
+        p.setProperty("insertproportion", "0.2");
+        Map<Workload.Operation, Integer> counts = draw(new Workload(p));
+        assertEquals(0.5, counts.get(Workload.Operation.READ) / (double) DRAWS, 0.01);
+        assertEquals(0.3, counts.get(Workload.Operation.UPDATE) / (double) DRAWS, 0.01);
+        assertEquals(0.2, counts.get(Workload.Operation.INSERT) / (double) DRAWS, 0.01);
+        assertEquals(0, (int) counts.get(Workload.Operation.SCAN));
+        assertEquals(0, (int) counts.get(Workload.Operation.READ_MODIFY_WRITE));
+    }
+
+    @Test
+    public void testProportionsAreNormalized() {
+        Properties p = new Properties();
+        p.setProperty("readproportion", "0");
+        p.setProperty("updateproportion", "0");
+        p.setProperty("scanproportion", "3");
+        p.setProperty("readmodifywriteproportion", "1");
+        Map<Workload.Operation, Integer> counts = draw(new Workload(p));
+        assertEquals(0.75, counts.get(Workload.Operation.SCAN) / (double) DRAWS, 0.01);
+        assertEquals(0.25, counts.get(Workload.Operation.READ_MODIFY_WRITE) / (double) DRAWS, 0.01);
+        assertEquals(0, (int) counts.get(Workload.Operation.READ));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testEmptyMixIsRejected() {
+        Properties p = new Properties();
+        p.setProperty("readproportion", "0");
+        p.setProperty("updateproportion", "0");
+        new Workload(p);
+    }
+
+    @Test
+    public void testAcknowledgedCounterWaitsForGaps() {
+        AcknowledgedCounter counter = new AcknowledgedCounter(10);
+        long a = counter.next();
+        long b = counter.next();
+        long c = counter.next();
+        assertEquals(10, a);
+        counter.acknowledge(c);
+        counter.acknowledge(b);
+        // 10 isn't done, so 11 and 12 can't be read yet
+        assertEquals(10, counter.getLimit());
+        counter.acknowledge(a);
+        assertEquals(13, counter.getLimit());
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.pavlos.collections.persistent.workload;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Paul Hieromnimon
+ */
+public class ZipfianKeyChooserTest {
+
+    private static final int DRAWS = 100000;
+
+    @Test
+    public void testStaysInRange() {
+        ZipfianKeyChooser chooser = new ZipfianKeyChooser(10);
+        Random random = new Random(1);
+        for (int i = 0; i < DRAWS; i++){
+            long record = chooser.next(random, 10);
+            assertTrue(record >= 0 && record < 10);
+        }
+    }
+
+    @Test
+    public void testIsSkewed() {
+        int records = 1000;
+        ZipfianKeyChooser chooser = new ZipfianKeyChooser(records);
+        Random random = new Random(1);
+        int[] counts = new int[records];
+        for (int i = 0; i < DRAWS; i++){
+            counts[(int) chooser.next(random, records)]++;
+        }
+        Arrays.sort(counts);
+        int top = 0;
+        for (int i = records - records / 10; i < records; i++){
+            top += counts[i];
+        }
+        // uniform would give the top 10% about 10%
+        assertTrue("top 10% got " + top, top > DRAWS / 2);
+        assertTrue(counts[records - 1] > DRAWS / 20);
+    }
+
+    @Test
+    public void testReachesInsertedRecords() {
+        ZipfianKeyChooser chooser = new ZipfianKeyChooser(1000);
+        Random random = new Random(1);
+        int inserted = 0;
+        for (int i = 0; i < DRAWS; i++){
+            long record = chooser.next(random, 2000);
+            assertTrue(record >= 0 && record < 2000);
+            if (record >= 1000){
+                inserted++;
+            }
+        }
+        assertTrue(inserted > DRAWS / 10);
+    }
+}